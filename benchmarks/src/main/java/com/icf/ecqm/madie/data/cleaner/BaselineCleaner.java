@@ -0,0 +1,313 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/*
+    The clean up from the baseline commit, before FHIRStreamRewriter: the String.replace chain over the whole file
+    from Main, a JSONObject round trip, then FHIRJsonUtil.updateResourceId and updateReferences. Everything from
+    the path lists down to isNumeric is a verbatim copy of the baseline FHIRJsonUtil, only referenceBy* point here.
+    Kept as the reference the streaming rewrite is benchmarked (FileBenchmark) and checked (RewriteEquivalenceCheck)
+    against, so it must not pick up later changes to the rules.
+
+    It differs from the current cleaner on purpose where the cleaner was changed, see RewriteEquivalenceCheck.
+ */
+public class BaselineCleaner {
+
+    public static JSONObject clean(String content) {
+        content = content
+                .replace("\"reference\": \"https://madie.cms.gov/", "\"reference\": \"")
+                .replace("\"reference\":\"https://madie.cms.gov/", "\"reference\":\"")
+                .replace("http://myGoodHealthcare.com/fhir/", "")
+                .replace("http://GoodHealthcare.com/fhir/", "")
+                .replace("Practitioner/example", "Practitioner/practitioner-123456");
+        JSONObject jsonObject = new JSONObject(content);
+        //the file map and queue only fed Main's re-queue, nothing here reads them back:
+        Map<String, Path> resourceIdToFileMap = new HashMap<>();
+        updateResourceId(jsonObject, resourceIdToFileMap);
+        updateReferences(jsonObject, new LinkedList<>(), new HashSet<>(), resourceIdToFileMap, Path.of("baseline.json"));
+        return jsonObject;
+    }
+
+    //written the way the cleaner used to write files:
+    public static String cleanToString(String content) {
+        return clean(content).toString(4);
+    }
+
+    /*
+       "diagnosis": [
+       {
+           "condition": {
+               "reference": "Condition/65f0d4b9-5788-47cf-a9ed-9e6a37aeb8c2"
+           }
+       }
+   ],*/
+    protected static final String[] referenceBySubArrays = {"diagnosis.condition"};
+
+
+    /*
+        "partOf": [
+        {
+            "reference": "Procedure/denex-pass-CMS646v0QICore4-3"
+        }
+    ],*/
+    protected static final String[] referenceByArray = {"payor", "evaluatedResource", "partOf"};
+
+    /*
+    "subject": {
+        "reference": "Patient/bb32779d-4c41-4113-85af-e534298c4579"
+    },*/
+    protected static final String[] referenceByString = {"subject", "beneficiary", "requester", "encounter", "medicationReference"};
+
+
+    protected static void updateResourceId(JSONObject jsonObject, Map<String, Path> resourceIdToFileMap) {
+        if (jsonObject.has("entry")) {
+            JSONArray entries = jsonObject.getJSONArray("entry");
+
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject entry = entries.getJSONObject(i);
+                if (entry.has("resource")) {
+                    JSONObject resource = entry.getJSONObject("resource");
+
+                    if (resource.has("id") && resource.has("resourceType")) {
+
+                        String id = resource.getString("id");
+                        String resourceType = resource.getString("resourceType");
+
+                        if (isNumeric(id)) {
+                            String newId = truncateFhirId(resourceType + "-" + id);
+                            resource.put("id", newId);
+
+                            // Update resource ID to file mapping
+                            Path file = resourceIdToFileMap.get(id);
+                            if (file != null) {
+                                resourceIdToFileMap.remove(id);
+                                resourceIdToFileMap.put(newId, file);
+                            }
+                        } else if (id.length() > 64 || id.contains(" ")) {
+                            String newId = truncateFhirId(id);
+                            jsonObject.put("id", newId);
+
+                            // Update resource ID to file mapping
+                            Path file = resourceIdToFileMap.get(id);
+                            if (file != null) {
+                                resourceIdToFileMap.remove(id);
+                                resourceIdToFileMap.put(newId, file);
+                            }
+                        }
+                    }
+                }
+            }
+        } else {
+            if (jsonObject.has("id") && jsonObject.has("resourceType")) {
+
+                String id = jsonObject.getString("id");
+                String resourceType = jsonObject.getString("resourceType");
+
+                if (isNumeric(id)) {
+                    String newId = truncateFhirId(resourceType + "-" + id);
+                    jsonObject.put("id", newId);
+
+                    // Update resource ID to file mapping
+                    Path file = resourceIdToFileMap.get(id);
+                    if (file != null) {
+                        resourceIdToFileMap.remove(id);
+                        resourceIdToFileMap.put(newId, file);
+                    }
+                } else if (id.length() > 64 || id.contains(" ")) {
+                    String newId = truncateFhirId(id);
+                    jsonObject.put("id", newId);
+
+                    // Update resource ID to file mapping
+                    Path file = resourceIdToFileMap.get(id);
+                    if (file != null) {
+                        resourceIdToFileMap.remove(id);
+                        resourceIdToFileMap.put(newId, file);
+                    }
+                }
+            }
+        }
+    }
+
+
+    protected static StringBuilder updateReferences(JSONObject jsonObject, Queue<Path> fileQueue, Set<Path> processedFileSet, Map<String, Path> resourceIdToFileMap, Path jsonFile) {
+
+        StringBuilder updatedEntriesLogger = new StringBuilder();
+        //establish the jsonObject we need to process, then process that block and return it.
+        if (jsonObject.has("entry")) {
+            JSONArray entries = jsonObject.getJSONArray("entry");
+
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject entry = entries.getJSONObject(i);
+                if (entry.has("resource")) {
+                    processJsonResource(entry.getJSONObject("resource"), fileQueue, processedFileSet, resourceIdToFileMap, jsonFile, updatedEntriesLogger);
+                }
+            }
+        } else if (jsonObject.has("id")) {
+            processJsonResource(jsonObject, fileQueue, processedFileSet, resourceIdToFileMap, jsonFile, updatedEntriesLogger);
+        }
+
+        return updatedEntriesLogger;
+    }
+
+    protected static void processJsonResource(JSONObject jsonObject, Queue<Path> fileQueue, Set<Path> processedFileSet, Map<String, Path> resourceIdToFileMap, Path jsonFile, StringBuilder updatedEntriesLogger) {
+        /*
+        "partOf": [
+        {
+            "reference": "Procedure/denex-pass-CMS646v0QICore4-3"
+        }
+        ],*/
+        for (String entryResourceID : BaselineCleaner.referenceByArray) {
+            if (jsonObject.has(entryResourceID)) {
+                JSONArray resourcesArray = jsonObject.getJSONArray(entryResourceID);
+                for (int j = 0; j < resourcesArray.length(); j++) {
+                    JSONObject entryIDResource = resourcesArray.getJSONObject(j);
+                    if (entryIDResource.has("reference")) {
+                        String reference = entryIDResource.getString("reference");
+                        String[] parts = reference.split("/");
+                        if (parts.length == 2) {
+
+                            String resourceID = parts[1];
+                            if (isNumeric(parts[1])) {
+                                resourceID = truncateFhirId(parts[0] + "-" + parts[1]);
+                            } else if (parts[1].length() > 64 || parts[1].contains(" ")) {
+                                resourceID = truncateFhirId(parts[1]);
+                            }
+                            // Strip external reference, align the ID with HAPI-suitable rules:
+                            String newReference = parts[0] + "/" + resourceID;
+
+                            if (newReference.equals(reference)) continue;
+
+                            entryIDResource.put("reference", newReference);
+                            // Enqueue file for re-processing if needed
+                            Path referencedFile = resourceIdToFileMap.get(parts[1]);
+                            if (updatedEntriesLogger.length() == 0) {
+                                updatedEntriesLogger.append("\n\r\n\r").append(jsonFile.getFileName()).append(":");
+                            }
+                            updatedEntriesLogger.append("\n\rUpdated ").append(entryResourceID).append(" ID: ").append(reference).append(" to ").append(newReference);
+
+                            if (referencedFile != null && !processedFileSet.contains(referencedFile)) {
+                                fileQueue.add(referencedFile);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+       /*
+        "diagnosis": [
+            {
+                "condition": {
+                    "reference": "Condition/65f0d4b9-5788-47cf-a9ed-9e6a37aeb8c2"
+                }
+            }
+        ],*/
+        for (String entrySub : BaselineCleaner.referenceBySubArrays) {
+            String[] theseParts = entrySub.split("\\.");
+            //diagnosis
+            String arrayName = theseParts[0];
+
+            //condition
+            String subEntry = theseParts[1];
+
+            //if the json block has diagnosis, process as Array
+            if (jsonObject.has(arrayName)) {
+                JSONArray resourceArray = jsonObject.getJSONArray(arrayName);
+
+                //for each entry in the array, look for the subEntry name
+                for (int j = 0; j < resourceArray.length(); j++) {
+                    JSONObject entryIDResource = resourceArray.getJSONObject(j);
+
+                    if (entryIDResource.has(subEntry)) {
+                        JSONObject subEntryObject = entryIDResource.getJSONObject(subEntry);
+
+                        if (subEntryObject != null && subEntryObject.has("reference")) {
+                            String reference = subEntryObject.getString("reference");
+                            String[] parts = reference.split("/");
+                            if (parts.length == 2) {
+
+                                String resourceID = parts[1];
+                                if (isNumeric(parts[1])) {
+                                    resourceID = truncateFhirId(parts[0] + "-" + parts[1]);
+                                } else if (parts[1].length() > 64 || parts[1].contains(" ")) {
+                                    resourceID = truncateFhirId(parts[1]);
+                                }
+                                // Strip external reference, align the ID with HAPI-suitable rules:
+                                String newReference = parts[0] + "/" + resourceID;
+
+                                if (newReference.equals(reference)) continue;
+
+                                subEntryObject.put("reference", newReference); // Update reference in the nested object
+
+                                Path referencedFile = resourceIdToFileMap.get(parts[1]);
+                                if (updatedEntriesLogger.length() == 0) {
+                                    updatedEntriesLogger.append("\n\r\n\r").append(jsonFile.getFileName()).append(":");
+                                }
+                                updatedEntriesLogger.append("\n\rUpdated ").append(entrySub).append(" ID: ").append(reference).append(" to ").append(newReference);
+
+                                if (referencedFile != null && !processedFileSet.contains(referencedFile)) {
+                                    fileQueue.add(referencedFile);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        /*
+        "subject": {
+            "reference": "Patient/bb32779d-4c41-4113-85af-e534298c4579"
+        },*/
+        for (String entryResourceID : BaselineCleaner.referenceByString) {
+            if (jsonObject.has(entryResourceID)) {
+                JSONObject resourceObject = jsonObject.getJSONObject(entryResourceID);
+
+                if (resourceObject.has("reference")) {
+                    String reference = resourceObject.getString("reference");
+                    String[] parts = reference.split("/");
+                    if (parts.length == 2) {
+
+                        String resourceID = parts[1];
+                        if (isNumeric(parts[1])) {
+                            resourceID = truncateFhirId(parts[0] + "-" + parts[1]);
+                        } else if (parts[1].length() > 64 || parts[1].contains(" ")) {
+                            resourceID = truncateFhirId(parts[1]);
+                        }
+                        //strip external reference, align the id with hapi-suitable rules:
+                        String newReference = parts[0] + "/" + resourceID;
+
+                        if (newReference.equals(reference)) continue;
+
+                        resourceObject.put("reference", newReference);
+
+                        // Enqueue file for re-processing if needed
+                        Path referencedFile = resourceIdToFileMap.get(parts[1]);
+
+                        if (updatedEntriesLogger.length() == 0) {
+                            updatedEntriesLogger.append("\n\r\n\r").append(jsonFile.getFileName()).append(":");
+                        }
+                        updatedEntriesLogger.append("\n\rUpdated ").append(entryResourceID).append(" ID: ").append(reference).append(" to ").append(newReference);
+
+                        if (referencedFile != null && !processedFileSet.contains(referencedFile)) {
+                            fileQueue.add(referencedFile);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static String truncateFhirId(String input) {
+        return (input.length() > 64 ? input.substring(0, 64) : input).replace(" ", "");
+    }
+
+
+    private static boolean isNumeric(String str) {
+        return str != null && str.matches("\\d+");
+    }
+}
@@ -0,0 +1,84 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import java.nio.file.Path;
+
+/*
+    Builds MADiE shaped test case bundles for the benchmarks. Each group of entries holds one of everything the
+    cleaner has to fix: a numeric id, an id with spaces, an id over 64 characters, madie.cms.gov and GoodHealthcare
+    references, Practitioner/example and references nested below the top level.
+ */
+public class BenchmarkBundles {
+    protected static final Path FILE = Path.of("input", "tests", "measure", "case", "case-bundle.json");
+
+    //entries per bundle for the "small", "typical" and "large" params:
+    protected static int entries(String size) {
+        switch (size) {
+            case "small":
+                return 5;
+            case "typical":
+                return 60;
+            case "large":
+                return 6000;
+            default:
+                throw new IllegalArgumentException("Unknown bundle size: " + size);
+        }
+    }
+
+    protected static String bundle(int entries) {
+        StringBuilder json = new StringBuilder(entries * 400);
+        json.append("{\"resourceType\":\"Bundle\",\"id\":\"case-bundle\",\"type\":\"transaction\",\"entry\":[");
+        for (int i = 0; i < entries; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            int group = i / 5;
+            json.append("{\"fullUrl\":\"https://madie.cms.gov/").append(i).append("\",\"resource\":");
+            switch (i % 5) {
+                case 0:
+                    json.append("{\"resourceType\":\"Patient\",\"id\":\"").append(100000 + group)
+                            .append("\",\"gender\":\"female\",\"birthDate\":\"1980-01-01\"}");
+                    break;
+                case 1:
+                    json.append("{\"resourceType\":\"Encounter\",\"id\":\"encounter with spaces ").append(group)
+                            .append("\",\"status\":\"finished\",\"subject\":{\"reference\":\"https://madie.cms.gov/Patient/").append(100000 + group)
+                            .append("\"},\"participant\":[{\"individual\":{\"reference\":\"Practitioner/example\"}}]}");
+                    break;
+                case 2:
+                    json.append("{\"resourceType\":\"Condition\",\"id\":\"").append(longId(group))
+                            .append("\",\"subject\":{\"reference\":\"Patient/").append(100000 + group)
+                            .append("\"},\"encounter\":{\"reference\":\"Encounter/encounter with spaces ").append(group)
+                            .append("\"},\"onsetDateTime\":\"2024-01-01T00:00:00.000Z\"}");
+                    break;
+                case 3:
+                    json.append("{\"resourceType\":\"Procedure\",\"id\":\"procedure-").append(group)
+                            .append("\",\"status\":\"completed\",\"subject\":{\"reference\":\"http://myGoodHealthcare.com/fhir/Patient/").append(100000 + group)
+                            .append("\"},\"performer\":[{\"actor\":{\"reference\":\"Practitioner/").append(200000 + group)
+                            .append("\"}}],\"reasonReference\":[{\"reference\":\"Condition/").append(longId(group)).append("\"}]}");
+                    break;
+                default:
+                    json.append("{\"resourceType\":\"Observation\",\"id\":\"observation-").append(group)
+                            .append("\",\"status\":\"final\",\"valueQuantity\":{\"value\":12.50,\"unit\":\"mg\"}")
+                            .append(",\"subject\":{\"reference\":\"Patient/").append(100000 + group).append("\"}}");
+            }
+            json.append(",\"request\":{\"method\":\"PUT\",\"url\":\"Resource/").append(i).append("\"}}");
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    //every resource the bundle defines, so references resolve the way they do in a real IG:
+    protected static ResourceIndex index(int entries) {
+        ResourceIndex resourceIndex = new ResourceIndex();
+        for (int group = 0; group <= entries / 5; group++) {
+            resourceIndex.put("Patient", String.valueOf(100000 + group), FILE);
+            resourceIndex.put("Encounter", "encounter with spaces " + group, FILE);
+            resourceIndex.put("Condition", longId(group), FILE);
+            resourceIndex.put("Practitioner", String.valueOf(200000 + group), FILE);
+        }
+        return resourceIndex;
+    }
+
+    private static String longId(int group) {
+        return "condition-with-an-identifier-that-is-far-too-long-for-a-fhir-server-" + group;
+    }
+}
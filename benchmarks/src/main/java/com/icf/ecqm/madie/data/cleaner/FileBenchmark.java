@@ -0,0 +1,50 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/*
+    One operation is one file, so ops/s reads as files per second and -prof gc's alloc.rate.norm as bytes
+    allocated per file. 'baselineClean' is the old org.json clean up (BaselineCleaner), 'streamRewrite' what
+    the cleaner runs now.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileBenchmark {
+
+    @Param({"small", "typical", "large"})
+    public String size;
+
+    private String bundle;
+    private ResourceIndex resourceIndex;
+
+    @Setup
+    public void setUp() {
+        int entries = BenchmarkBundles.entries(size);
+        bundle = BenchmarkBundles.bundle(entries);
+        resourceIndex = BenchmarkBundles.index(entries);
+    }
+
+    //the JSONObject round trip the stream rewrite replaced, for a before/after comparison:
+    @Benchmark
+    public String baselineClean() {
+        return BaselineCleaner.cleanToString(bundle);
+    }
+
+    //what Main runs per file: read, fix ids and references, write:
+    @Benchmark
+    public StringWriter streamRewrite() throws IOException {
+        StringWriter out = new StringWriter(bundle.length() * 2);
+        new FHIRStreamRewriter(BenchmarkBundles.FILE, resourceIndex, ReferenceMatcher.ALL, null, null, false)
+                .rewrite(new StringReader(bundle), out);
+        return out;
+    }
+}
@@ -0,0 +1,54 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+//the per-id rules (isNumeric / truncateFhirId through fixResourceId), over a typical mix of ids. One operation is one id:
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdBenchmark {
+    private static final String[][] IDS = {
+            {"Patient", "1234567"},
+            {"Encounter", "encounter with spaces 12"},
+            {"Condition", "condition-with-an-identifier-that-is-far-too-long-for-a-fhir-server-12"},
+            {"Observation", "observation-12"},
+            {"Practitioner", "practitioner-123456"},
+            {"Procedure", "6f1c8f0e-53b4-4d8e-9f0a-7d7c1b2e3a41"},
+    };
+    private static final String[] REFERENCES = {
+            "Patient/1234567",
+            "Encounter/encounter with spaces 12",
+            "Observation/observation-12",
+            "urn:uuid:6f1c8f0e-53b4-4d8e-9f0a-7d7c1b2e3a41",
+    };
+
+    @Benchmark
+    @OperationsPerInvocation(6)
+    public void needsIdFix(Blackhole blackhole) {
+        for (String[] id : IDS) {
+            blackhole.consume(FHIRJsonUtil.needsIdFix(id[1]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(6)
+    public void fixResourceId(Blackhole blackhole) {
+        for (String[] id : IDS) {
+            blackhole.consume(FHIRJsonUtil.fixResourceId(id[0], id[1]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(4)
+    public void rewriteReference(Blackhole blackhole) {
+        for (String reference : REFERENCES) {
+            blackhole.consume(FHIRJsonUtil.rewriteReference(reference));
+        }
+    }
+}
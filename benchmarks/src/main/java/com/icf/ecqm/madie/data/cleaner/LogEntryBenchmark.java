@@ -0,0 +1,30 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+//http_request_fail lines, most RefreshIG logs are a mix of missing resources and other failures. One operation is one line:
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogEntryBenchmark {
+    private static final String[] LINES = {
+            "Error uploading case-bundle.json: http://localhost:8080/fhir: HTTP 400 Bad Request: Resource Patient/Patient-123 not found, specified in path: Encounter.subject",
+            "Error uploading other-bundle.json: https://fhir.example.org/fhir/: HTTP 400 Bad Request: Resource Practitioner/practitioner-9 not found, specified in path: Procedure.performer.actor",
+            "Error uploading case-bundle.json: http://localhost:8080/fhir: HTTP 422 Unprocessable Entity: Profile validation failed",
+            "Error uploading case-bundle.json: http://localhost:8080/fhir: HTTP 500 Internal Server Error",
+    };
+
+    @Benchmark
+    @OperationsPerInvocation(4)
+    public void parseLogEntry(Blackhole blackhole) {
+        for (String line : LINES) {
+            blackhole.consume(ParsedLogEntry.parseLogEntry(line));
+        }
+    }
+}
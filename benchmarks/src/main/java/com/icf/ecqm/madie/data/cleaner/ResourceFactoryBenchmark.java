@@ -0,0 +1,46 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//rendering one dummy resource of each type placed for missing references from its template:
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResourceFactoryBenchmark {
+    private static final String ID = "Patient-123";
+
+    @Benchmark
+    public String patient() {
+        return ResourceFactory.create("Patient", ID);
+    }
+
+    @Benchmark
+    public String practitioner() {
+        return ResourceFactory.create("Practitioner", ID);
+    }
+
+    @Benchmark
+    public String encounter() {
+        return ResourceFactory.create("Encounter", ID);
+    }
+
+    @Benchmark
+    public String condition() {
+        return ResourceFactory.create("Condition", ID);
+    }
+
+    @Benchmark
+    public String organization() {
+        return ResourceFactory.create("Organization", ID);
+    }
+
+    @Benchmark
+    public String randomString() {
+        return ResourceFactory.generateRandomString();
+    }
+}
@@ -0,0 +1,173 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+
+/*
+    Runs every fixture in rewrite-fixtures/ through FHIRStreamRewriter and through BaselineCleaner, the clean up from
+    before it, and fails on any place the two differ that isn't one of the intended differences listed in INTENDED.
+    An intended difference that no longer shows up fails too, so the list can't go stale. Each fixture is also
+    rewritten a second time, which has to leave it byte for byte the same.
+
+    The intended differences are the baseline behaviour the cleaner changed on purpose:
+        root-id     for a Bundle entry whose id has spaces or is over 64 characters, the baseline wrote the fixed id
+                    onto the Bundle itself instead of the entry's resource
+        any-depth   the baseline only rewrote references under its path lists (subject, encounter, partOf,
+                    diagnosis.condition, ...); the cleaner rewrites every reference in a resource (user-011)
+    Everything else, the url prefixes, Practitioner/example and the id rules, has to come out the same.
+
+    The fixtures cover what the stream rewrite has to get right without seeing the whole file: numeric ids, ids
+    with spaces and over 64 characters, an id before or after its resourceType, references on a root before
+    "entry" turns it into a Bundle, madie and GoodHealthcare prefixes, Practitioner/example, references nested
+    in arrays, urls in strings that aren't references, and \/ and \\u escapes.
+
+    The baseline works on the raw text, so it can't see through escapes. It's given each fixture re-serialized
+    by org.json (no escapes, "reference": "..." spacing), which is what the old String.replace was written for.
+    --ref-include/--ref-exclude came after the baseline, so only the default of every reference is compared.
+
+    java -cp benchmarks.jar com.icf.ecqm.madie.data.cleaner.RewriteEquivalenceCheck
+ */
+public class RewriteEquivalenceCheck {
+    private static final Path FILE = Path.of("fixture.json");
+
+    private static final String ROOT_ID = "root-id";
+    private static final String ANY_DEPTH = "any-depth";
+
+    //fixture -> json pointer -> why the cleaner differs from the baseline there:
+    private static final Map<String, Map<String, String>> INTENDED = new LinkedHashMap<>();
+
+    static {
+        intended("bundle-ids.json",
+                "/id", ROOT_ID,
+                "/entry/1/resource/id", ROOT_ID,
+                "/entry/2/resource/id", ROOT_ID,
+                "/entry/1/resource/location/0/location/reference", ANY_DEPTH,
+                "/entry/3/resource/patient/reference", ANY_DEPTH,
+                "/entry/3/resource/diagnosis/0/diagnosisReference/reference", ANY_DEPTH,
+                "/entry/3/resource/diagnosis/1/diagnosisReference/reference", ANY_DEPTH,
+                "/entry/3/resource/item/0/encounter/0/reference", ANY_DEPTH,
+                "/entry/3/resource/insurance/0/coverage/reference", ANY_DEPTH);
+        intended("escaped.json",
+                "/basedOn/0/reference", ANY_DEPTH,
+                "/basedOn/1/reference", ANY_DEPTH,
+                "/serviceProvider/reference", ANY_DEPTH);
+        intended("root-id-after-type.json",
+                "/performer/1/reference", ANY_DEPTH,
+                "/hasMember/0/reference", ANY_DEPTH);
+        intended("root-id-before-type.json",
+                "/focus/0/reference", ANY_DEPTH);
+        intended("root-references-before-entry.json");
+        intended("root-without-id.json");
+        intended("urls-outside-references.json");
+    }
+
+    private static void intended(String fixture, String... pointersAndReasons) {
+        Map<String, String> differences = new TreeMap<>();
+        for (int i = 0; i < pointersAndReasons.length; i += 2) {
+            differences.put(pointersAndReasons[i], pointersAndReasons[i + 1]);
+        }
+        INTENDED.put(fixture, differences);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int failures = 0;
+        for (Map.Entry<String, Map<String, String>> fixture : INTENDED.entrySet()) {
+            String name = fixture.getKey();
+            String content = readFixture(name);
+            String streamed = rewrite(content);
+            JSONObject baseline = BaselineCleaner.clean(new JSONObject(content).toString(4));
+
+            Set<String> differences = new TreeSet<>();
+            diff(new JSONObject(streamed), baseline, "", differences);
+            List<String> problems = new ArrayList<>();
+            for (String pointer : differences) {
+                if (!fixture.getValue().containsKey(pointer)) {
+                    problems.add("differs from the baseline at " + pointer + "\n  stream:   " + valueAt(new JSONObject(streamed), pointer)
+                            + "\n  baseline: " + valueAt(baseline, pointer));
+                }
+            }
+            for (String pointer : fixture.getValue().keySet()) {
+                if (!differences.contains(pointer)) {
+                    problems.add("the intended difference at " + pointer + " (" + fixture.getValue().get(pointer) + ") is gone");
+                }
+            }
+            if (!rewrite(streamed).equals(streamed)) {
+                problems.add("a second rewrite changed the output");
+            }
+
+            if (problems.isEmpty()) {
+                System.out.println("ok   " + name + (differences.isEmpty() ? "" : " (" + differences.size() + " intended differences)"));
+            } else {
+                failures += problems.size();
+                for (String problem : problems) {
+                    System.out.println("FAIL " + name + ": " + problem);
+                }
+            }
+        }
+
+        if (failures > 0) {
+            System.out.println(failures + " failed");
+            System.exit(1);
+        }
+        System.out.println("The stream rewrite matches the baseline for all " + INTENDED.size() + " fixtures, apart from the intended differences.");
+    }
+
+    //every json pointer where the two values differ, a missing key or a different array length counts at the parent:
+    private static void diff(Object a, Object b, String pointer, Set<String> differences) {
+        if (a instanceof JSONObject && b instanceof JSONObject) {
+            JSONObject objectA = (JSONObject) a;
+            JSONObject objectB = (JSONObject) b;
+            if (!objectA.keySet().equals(objectB.keySet())) {
+                differences.add(pointer);
+                return;
+            }
+            for (String key : objectA.keySet()) {
+                diff(objectA.get(key), objectB.get(key), pointer + "/" + key, differences);
+            }
+        } else if (a instanceof JSONArray && b instanceof JSONArray) {
+            JSONArray arrayA = (JSONArray) a;
+            JSONArray arrayB = (JSONArray) b;
+            if (arrayA.length() != arrayB.length()) {
+                differences.add(pointer);
+                return;
+            }
+            for (int i = 0; i < arrayA.length(); i++) {
+                diff(arrayA.get(i), arrayB.get(i), pointer + "/" + i, differences);
+            }
+        } else if (a instanceof Number && b instanceof Number) {
+            if (new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString())) != 0) {
+                differences.add(pointer);
+            }
+        } else if (!Objects.equals(a, b)) {
+            differences.add(pointer);
+        }
+    }
+
+    private static Object valueAt(JSONObject json, String pointer) {
+        return pointer.isEmpty() ? json : json.optQuery(pointer);
+    }
+
+    private static String rewrite(String content) throws IOException {
+        StringWriter out = new StringWriter();
+        new FHIRStreamRewriter(FILE, new ResourceIndex(), ReferenceMatcher.ALL, null, null, false).rewrite(new StringReader(content), out);
+        return out.toString();
+    }
+
+    private static String readFixture(String name) throws IOException {
+        try (InputStream in = RewriteEquivalenceCheck.class.getResourceAsStream("/rewrite-fixtures/" + name)) {
+            if (in == null) {
+                throw new IOException("Missing fixture " + name);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Places dummy resources with AsyncUploader on a LocalFhirServer that fails ERROR_RATE of its requests with a 503,
+    and fails unless some resources needed more than one attempt and every resource ended up placed. With MAX_RETRIES
+    retries a resource only fails for good when all of its attempts hit an injected error, about 0.2^9 per resource.
+
+    java -cp benchmarks.jar com.icf.ecqm.madie.data.cleaner.UploadRetryCheck
+ */
+public class UploadRetryCheck {
+    private static final int RESOURCES = 200;
+    private static final double ERROR_RATE = 0.2;
+    private static final int MAX_IN_FLIGHT = 16;
+    private static final int MAX_RETRIES = 8;
+
+    public static void main(String[] args) throws Exception {
+        LocalFhirServer.enableNoDelay();
+        LocalFhirServer server = new LocalFhirServer(0, 0, ERROR_RATE);
+        server.start();
+        List<UploadResult> results;
+        try {
+            List<DummyResource> dummyResources = new ArrayList<>(RESOURCES);
+            for (int n = 0; n < RESOURCES; n++) {
+                String id = "retry-" + n;
+                ParsedLogEntry logEntry = new ParsedLogEntry("Patient", id, "retry-check-bundle.json", server.getBaseUrl());
+                dummyResources.add(new DummyResource(logEntry, id, ResourceFactory.create("Patient", id)));
+            }
+            results = new AsyncUploader(TransactionUploader.newHttpClient(), MAX_IN_FLIGHT, MAX_RETRIES).upload(dummyResources);
+
+            int failures = 0;
+            int retried = 0;
+            int maxAttempts = 0;
+            for (UploadResult result : results) {
+                if (!result.isSuccess()) {
+                    failures++;
+                    System.out.println("FAIL " + result.getDummyResource().getRelativeUrl() + " after " + result.getAttempts()
+                            + " attempts: " + result.getStatusCode() + " " + result.getResponse());
+                }
+                if (result.getAttempts() > 1) {
+                    retried++;
+                }
+                maxAttempts = Math.max(maxAttempts, result.getAttempts());
+            }
+            System.out.println(results.size() + " resources, " + retried + " retried (up to " + maxAttempts + " attempts), "
+                    + server.getInjectedErrors() + " errors injected, " + server.size() + " on the server.");
+
+            if (retried == 0) {
+                failures++;
+                System.out.println("FAIL no resource needed more than one attempt, the injected errors weren't retried");
+            }
+            if (server.size() != RESOURCES) {
+                failures++;
+                System.out.println("FAIL the server holds " + server.size() + " of " + RESOURCES + " resources");
+            }
+            if (failures > 0) {
+                System.out.println(failures + " failed");
+                System.exit(1);
+            }
+            System.out.println("Every resource was placed despite the injected errors.");
+        } finally {
+            server.stop();
+        }
+    }
+}
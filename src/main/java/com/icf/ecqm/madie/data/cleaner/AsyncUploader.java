@@ -0,0 +1,122 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Places dummy resources one PUT at a time, for servers that reject large transaction bundles. Requests go out
+    through HttpClient.sendAsync with at most maxInFlight resources being worked on at once. 429 and 5xx
+    responses, and requests that never got a response, are retried up to maxRetries times with exponential
+    backoff and full jitter (a Retry-After header in seconds is honored when it asks for longer).
+ */
+public class AsyncUploader implements ResourceUploader {
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    private final HttpClient httpClient;
+    private final int maxInFlight;
+    private final int maxRetries;
+
+    public AsyncUploader(HttpClient httpClient, int maxInFlight, int maxRetries) {
+        this.httpClient = httpClient;
+        this.maxInFlight = maxInFlight;
+        this.maxRetries = maxRetries;
+    }
+
+    @Override
+    public List<UploadResult> upload(List<DummyResource> dummyResources) {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        List<CompletableFuture<UploadResult>> futures = new ArrayList<>(dummyResources.size());
+
+        for (DummyResource dummyResource : dummyResources) {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.add(CompletableFuture.completedFuture(new UploadResult(dummyResource, -1, String.valueOf(e))));
+                continue;
+            }
+            //the permit is held across retries, so backing off resources still count against the limit:
+            futures.add(send(dummyResource, 1).whenComplete((result, error) -> inFlight.release()));
+        }
+
+        List<UploadResult> results = new ArrayList<>(futures.size());
+        for (CompletableFuture<UploadResult> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    private CompletableFuture<UploadResult> send(DummyResource dummyResource, int attempt) {
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder()
+                    .uri(URI.create(dummyResource.getResourceUrl()))
+                    .header("Content-Type", "application/fhir+json")
+                    .PUT(HttpRequest.BodyPublishers.ofString(dummyResource.getResource()))
+                    .build();
+        } catch (RuntimeException e) {
+            //a url that can't be requested fails this resource, not the run, and isn't worth retrying:
+            return CompletableFuture.completedFuture(new UploadResult(dummyResource, -1, String.valueOf(e), 0, attempt));
+        }
+
+        long start = System.nanoTime();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .handle((response, error) -> {
+                    long latencyMillis = (System.nanoTime() - start) / 1_000_000;
+                    if (error != null) {
+                        return new Outcome(new UploadResult(dummyResource, -1, String.valueOf(error), latencyMillis, attempt), 0);
+                    }
+                    return new Outcome(new UploadResult(dummyResource, response.statusCode(), response.body(), latencyMillis, attempt),
+                            retryAfterMillis(response));
+                })
+                .thenCompose(outcome -> {
+                    if (attempt > maxRetries || !isRetryable(outcome.result.getStatusCode())) {
+                        return CompletableFuture.completedFuture(outcome.result);
+                    }
+                    long delay = Math.max(backoffMillis(attempt), outcome.retryAfterMillis);
+                    return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS))
+                            .thenCompose(ignored -> send(dummyResource, attempt + 1));
+                });
+    }
+
+    private static class Outcome {
+        private final UploadResult result;
+        private final long retryAfterMillis;
+
+        private Outcome(UploadResult result, long retryAfterMillis) {
+            this.result = result;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    //-1 means no response came back at all (connection refused, reset, timed out):
+    protected static boolean isRetryable(int statusCode) {
+        return statusCode == -1 || statusCode == 429 || statusCode >= 500;
+    }
+
+    //full jitter: a random delay between 0 and BASE * 2^(attempt - 1), capped:
+    protected static long backoffMillis(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private static long retryAfterMillis(HttpResponse<String> response) {
+        return response.headers().firstValue("Retry-After").map(value -> {
+            try {
+                return Math.min(MAX_BACKOFF_MILLIS, Long.parseLong(value.trim()) * 1000);
+            } catch (NumberFormatException e) {
+                //HTTP-date form isn't worth parsing here, the backoff covers it:
+                return 0L;
+            }
+        }).orElse(0L);
+    }
+}
@@ -0,0 +1,208 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    Remembers what every cleaned file looked like when it was last written (size, mtime, sha-256) along with the
+    resource ids it contributed to the resource index. On an --incremental run, a file that still matches its entry is
+    skipped entirely and its ids are restored from here instead of re-reading it.
+
+    A file matching its entry is only as clean as the rules it was cleaned with. The manifest also stores
+    RULES_VERSION and the fingerprint of the options that change output (CleanerOptions.getOutputFingerprint), and
+    when either differs from this run, every entry is dropped and the whole IG is cleaned again.
+
+    The manifest deliberately doesn't end in .json so the cleaner never picks it up as a resource.
+ */
+public class CleanerManifest {
+    protected static final String MANIFEST_FILE_NAME = ".madie-data-cleaner-manifest";
+    //bump whenever a change to FHIRStreamRewriter or the id rules in FHIRJsonUtil would write a file differently:
+    protected static final int RULES_VERSION = 1;
+
+    private final Path baseDir;
+    private final String optionsFingerprint;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    //mtimes isUnchanged found moved on files whose hash still matched, written to the entries by restore:
+    private final Map<String, Long> movedLastModified = new ConcurrentHashMap<>();
+
+    private CleanerManifest(Path baseDir, String optionsFingerprint) {
+        this.baseDir = baseDir;
+        this.optionsFingerprint = optionsFingerprint;
+    }
+
+    //the manifest file as a whole. A manifest from before the version was stored reads as version 0:
+    private static class Stored {
+        private int rulesVersion;
+        private String options;
+        private Map<String, Entry> entries;
+    }
+
+    private static class Entry {
+        private long size;
+        private long lastModified;
+        private String sha256;
+        //{id, resourceType} as they read after cleaning, resourceType may be null:
+        private List<String[]> resources;
+    }
+
+    public static CleanerManifest load(Path baseDir, String optionsFingerprint) {
+        CleanerManifest manifest = new CleanerManifest(baseDir, optionsFingerprint);
+        Path manifestFile = baseDir.resolve(MANIFEST_FILE_NAME);
+        if (!Files.isRegularFile(manifestFile)) {
+            return manifest;
+        }
+
+        try (Reader reader = Files.newBufferedReader(manifestFile)) {
+            Stored stored = new Gson().fromJson(reader, Stored.class);
+            if (stored == null || stored.entries == null) {
+                return manifest;
+            }
+            if (stored.rulesVersion != RULES_VERSION || !optionsFingerprint.equals(stored.options)) {
+                System.out.println("The clean up rules or options changed since the manifest was written, cleaning every file.");
+                return manifest;
+            }
+            manifest.entries.putAll(stored.entries);
+        } catch (Exception e) {
+            //a bad manifest only costs a full run:
+            System.err.println("Ignoring unreadable manifest: " + manifestFile);
+            e.printStackTrace();
+        }
+        return manifest;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    //true when the file is byte for byte what this cleaner last wrote. Size and mtime are checked first, the hash is
+    //only computed when the mtime moved (e.g. a checkout touched the file without changing it). Called from workers,
+    //so it doesn't touch the entries:
+    public boolean isUnchanged(Path file) {
+        Entry entry = entries.get(key(file));
+        if (entry == null) {
+            return false;
+        }
+        try {
+            if (Files.size(file) != entry.size) {
+                return false;
+            }
+            long lastModified = Files.getLastModifiedTime(file).toMillis();
+            if (lastModified == entry.lastModified) {
+                return true;
+            }
+            if (sha256(file).equals(entry.sha256)) {
+                movedLastModified.put(key(file), lastModified);
+                return true;
+            }
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    //puts the ids of an unchanged file back into the index as if it had been mapped, and keeps its new mtime so the
+    //hash isn't computed again next run. Returns the {id, resourceType} pairs it put back. Called on the main thread:
+    public List<String[]> restore(Path file, ResourceIndex resourceIndex) {
+        Entry entry = entries.get(key(file));
+        Long lastModified = movedLastModified.remove(key(file));
+        if (lastModified != null) {
+            entry.lastModified = lastModified;
+        }
+        for (String[] resource : entry.resources) {
+            FHIRJsonUtil.recordResourceId(resource[0], resource[1], resourceIndex, file);
+        }
+        return entry.resources;
+    }
+
+    //records the file as it is on disk now, recordedResources are the {id, resourceType} pairs read before cleaning:
+    public void update(Path file, List<String[]> recordedResources) {
+        try {
+            Entry entry = new Entry();
+            entry.size = Files.size(file);
+            entry.lastModified = Files.getLastModifiedTime(file).toMillis();
+            entry.sha256 = sha256(file);
+            entry.resources = new ArrayList<>(recordedResources.size());
+            for (String[] resource : recordedResources) {
+                entry.resources.add(new String[]{FHIRJsonUtil.cleanedResourceId(resource[0], resource[1]), resource[1]});
+            }
+            entries.put(key(file), entry);
+        } catch (IOException e) {
+            //leave it out, the file just gets cleaned again next time:
+            entries.remove(key(file));
+        }
+    }
+
+    //drops entries for files that have since been deleted or moved:
+    public void remove(Path file) {
+        entries.remove(key(file));
+    }
+
+    public void retainOnly(Collection<Path> files) {
+        Set<String> keys = new HashSet<>();
+        for (Path file : files) {
+            keys.add(key(file));
+        }
+        entries.keySet().retainAll(keys);
+    }
+
+    public void save() throws IOException {
+        Path manifestFile = baseDir.resolve(MANIFEST_FILE_NAME);
+        Path tempFile = Files.createTempFile(baseDir, MANIFEST_FILE_NAME, ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tempFile)) {
+                Stored stored = new Stored();
+                stored.rulesVersion = RULES_VERSION;
+                stored.options = optionsFingerprint;
+                stored.entries = new TreeMap<>(entries);
+                new Gson().toJson(stored, writer);
+            }
+            //a crash mid-move leaves either the old manifest or the new one, never a truncated one:
+            try {
+                Files.move(tempFile, manifestFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, manifestFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private String key(Path file) {
+        return baseDir.relativize(file.toAbsolutePath()).toString().replace('\\', '/');
+    }
+
+    protected static String sha256(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            byte[] buffer = new byte[64 * 1024];
+            while (in.read(buffer) != -1) {
+                //digest is updated as the stream is read
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,297 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+public class CleanerOptions {
+    private boolean checkLogs = false;
+    private int threads = 1;
+    private boolean singlePass = false;
+    private boolean incremental = false;
+    private int batchSize = 100;
+    private boolean perResourceUpload = false;
+    private int maxInFlight = 8;
+    private int maxRetries = 3;
+    private final List<String> referenceIncludes = new ArrayList<>();
+    private final List<String> referenceExcludes = new ArrayList<>();
+    private ReferenceMatcher referenceMatcher;
+    private String reportFile = null;
+    private String metricsOut = null;
+    private boolean prefilter = true;
+    private String templatesDir = null;
+    private final List<String> includes = new ArrayList<>();
+    private final List<String> excludes = new ArrayList<>();
+    private boolean defaultExcludes = true;
+    private boolean watch = false;
+    private int debounceMillis = 500;
+    private String graphOut = null;
+    private final List<String> exportZips = new ArrayList<>();
+    private String zipDest = "input/tests";
+    private String zipOut = null;
+    private String ndjsonOut = null;
+    private boolean createMissing = false;
+    private String missingDir = "input/resources";
+    private String missingServer = null;
+    private boolean serverCache = true;
+    private int serverCacheTtlMinutes = 24 * 60;
+
+    public boolean isCheckLogs() {
+        return checkLogs;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public boolean isSinglePass() {
+        return singlePass;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    //PUT each dummy resource on its own instead of in transaction bundles:
+    public boolean isPerResourceUpload() {
+        return perResourceUpload;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    //which references get rewritten, built from --ref-include/--ref-exclude (everything by default):
+    public ReferenceMatcher getReferenceMatcher() {
+        return referenceMatcher;
+    }
+
+    //the options that change what a cleaned file looks like, --incremental cleans everything again when it changes:
+    public String getOutputFingerprint() {
+        List<String> includes = new ArrayList<>(referenceIncludes);
+        List<String> excludes = new ArrayList<>(referenceExcludes);
+        includes.sort(null);
+        excludes.sort(null);
+        return "ref-include:" + String.join(",", includes) + ";ref-exclude:" + String.join(",", excludes);
+    }
+
+    //where the JSON Lines run report goes, relative to the IG directory unless absolute. null without --report:
+    public String getReportFile() {
+        return reportFile;
+    }
+
+    //where to write the run metrics, null when they're only printed. Prometheus text for .prom files, json otherwise:
+    public String getMetricsOut() {
+        return metricsOut;
+    }
+
+    //skip files whose raw bytes show nothing to clean, on unless --no-prefilter is given:
+    public boolean isPrefilter() {
+        return prefilter;
+    }
+
+    //directory of extra dummy resource templates, null for only the built in ones:
+    public String getTemplatesDir() {
+        return templatesDir;
+    }
+
+    //globs for the files to clean, relative to the IG directory. Empty means every .json file:
+    public List<String> getIncludes() {
+        return includes;
+    }
+
+    //globs for files and directories to leave alone, on top of FileWalker.DEFAULT_EXCLUDES:
+    public List<String> getExcludes() {
+        return excludes;
+    }
+
+    //skip the usual build, vcs and terminology directories, on unless --no-default-excludes is given:
+    public boolean isDefaultExcludes() {
+        return defaultExcludes;
+    }
+
+    //keep running after the first pass and clean files as they're created or changed:
+    public boolean isWatch() {
+        return watch;
+    }
+
+    //how long changes have to settle in --watch before they're cleaned:
+    public int getDebounceMillis() {
+        return debounceMillis;
+    }
+
+    //where to write the reference graph, null for none. Graphviz for .dot files, json otherwise:
+    public String getGraphOut() {
+        return graphOut;
+    }
+
+    //MADiE export zips to clean straight out of the archive:
+    public List<String> getExportZips() {
+        return exportZips;
+    }
+
+    //where the cleaned entries of --zip go, relative to the IG directory unless absolute:
+    public String getZipDest() {
+        return zipDest;
+    }
+
+    //a zip to write the cleaned entries of --zip to instead of the IG, null to write them to the IG:
+    public String getZipOut() {
+        return zipOut;
+    }
+
+    //directory for the Bulk Data ndjson export of the cleaned IG, null for none:
+    public String getNdjsonOut() {
+        return ndjsonOut;
+    }
+
+    //create placeholders for every reference nothing in the IG defines, without waiting for the http logs:
+    public boolean isCreateMissing() {
+        return createMissing;
+    }
+
+    //where --create-missing writes its placeholders, relative to the IG directory unless absolute:
+    public String getMissingDir() {
+        return missingDir;
+    }
+
+    //server to place the --create-missing placeholders on instead of writing them to files, null to write files:
+    public String getMissingServer() {
+        return missingServer;
+    }
+
+    //skip uploading dummy entries the server is known to have, see ServerCache:
+    public boolean isServerCache() {
+        return serverCache;
+    }
+
+    //how long a resource found on a server is trusted to still be there:
+    public int getServerCacheTtlMinutes() {
+        return serverCacheTtlMinutes;
+    }
+
+    //exact option names, matched case insensitively. Flags take no value, the rest take one as "--name value" or
+    //"--name=value". Anything else is rejected, so a typo fails the run instead of quietly changing what it does:
+    private static final Map<String, Consumer<CleanerOptions>> FLAGS = new HashMap<>();
+    private static final Map<String, BiConsumer<CleanerOptions, String>> VALUES = new HashMap<>();
+
+    static {
+        FLAGS.put("-checklogs", options -> options.checkLogs = true);
+        FLAGS.put("--checklogs", options -> options.checkLogs = true);
+        FLAGS.put("--single-pass", options -> options.singlePass = true);
+        FLAGS.put("--incremental", options -> options.incremental = true);
+        FLAGS.put("--create-missing", options -> options.createMissing = true);
+        FLAGS.put("--watch", options -> options.watch = true);
+        FLAGS.put("--no-default-excludes", options -> options.defaultExcludes = false);
+        FLAGS.put("--no-server-cache", options -> options.serverCache = false);
+        FLAGS.put("--no-prefilter", options -> options.prefilter = false);
+        FLAGS.put("--per-resource-upload", options -> options.perResourceUpload = true);
+
+        VALUES.put("--threads", (options, value) -> options.threads = parsePositiveInt("--threads", value));
+        VALUES.put("--batch-size", (options, value) -> options.batchSize = parsePositiveInt("--batch-size", value));
+        VALUES.put("--max-in-flight", (options, value) -> options.maxInFlight = parsePositiveInt("--max-in-flight", value));
+        VALUES.put("--max-retries", (options, value) -> options.maxRetries = parseNonNegativeInt("--max-retries", value));
+        VALUES.put("--debounce", (options, value) -> options.debounceMillis = parseNonNegativeInt("--debounce", value));
+        VALUES.put("--server-cache-ttl", (options, value) -> options.serverCacheTtlMinutes = parseNonNegativeInt("--server-cache-ttl", value));
+        //comma separated, and these may be repeated:
+        VALUES.put("--ref-include", (options, value) -> addAll(options.referenceIncludes, value));
+        VALUES.put("--ref-exclude", (options, value) -> addAll(options.referenceExcludes, value));
+        VALUES.put("--include", (options, value) -> addAll(options.includes, value));
+        VALUES.put("--exclude", (options, value) -> addAll(options.excludes, value));
+        VALUES.put("--zip", (options, value) -> addAll(options.exportZips, value));
+        VALUES.put("--templates", (options, value) -> options.templatesDir = value);
+        VALUES.put("--zip-dest", (options, value) -> options.zipDest = value);
+        VALUES.put("--zip-out", (options, value) -> options.zipOut = value);
+        VALUES.put("--ndjson-out", (options, value) -> options.ndjsonOut = value);
+        VALUES.put("--missing-dir", (options, value) -> options.missingDir = value);
+        VALUES.put("--missing-server", (options, value) -> options.missingServer = value);
+        VALUES.put("--graph-out", (options, value) -> options.graphOut = value);
+        VALUES.put("--metrics-out", (options, value) -> options.metricsOut = value);
+        VALUES.put("--report", (options, value) -> options.reportFile = value);
+    }
+
+    public static CleanerOptions fromArgs(String[] args) {
+        CleanerOptions options = new CleanerOptions();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            int equalsIndex = arg.indexOf('=');
+            String name = (equalsIndex >= 0 ? arg.substring(0, equalsIndex) : arg).toLowerCase();
+
+            Consumer<CleanerOptions> flag = FLAGS.get(name);
+            if (flag != null && equalsIndex < 0) {
+                flag.accept(options);
+                continue;
+            }
+            BiConsumer<CleanerOptions, String> setter = VALUES.get(name);
+            if (setter == null) {
+                throw new IllegalArgumentException(flag != null ? name + " doesn't take a value." : "Unknown option: " + arg);
+            }
+
+            //supports both "--option value" and "--option=value":
+            String value;
+            if (equalsIndex >= 0) {
+                value = arg.substring(equalsIndex + 1);
+            } else if (i + 1 < args.length) {
+                value = args[++i];
+            } else {
+                throw new IllegalArgumentException(name + " requires a value.");
+            }
+            setter.accept(options, value);
+        }
+
+        options.referenceMatcher = options.referenceIncludes.isEmpty() && options.referenceExcludes.isEmpty()
+                ? ReferenceMatcher.ALL
+                : new ReferenceMatcher(options.referenceIncludes, options.referenceExcludes);
+        return options;
+    }
+
+    //the value following the option at args[i], for the load testing mains that take "--name value" options of their own:
+    protected static String valueAfter(String[] args, int i) {
+        if (i + 1 >= args.length) {
+            throw new IllegalArgumentException(args[i] + " requires a value.");
+        }
+        return args[i + 1];
+    }
+
+    private static void addAll(List<String> target, String value) {
+        for (String item : value.split(",")) {
+            if (!item.isBlank()) {
+                target.add(item.trim());
+            }
+        }
+    }
+
+    private static int parsePositiveInt(String option, String value) {
+        return parseInt(option, value, 1);
+    }
+
+    private static int parseNonNegativeInt(String option, String value) {
+        return parseInt(option, value, 0);
+    }
+
+    private static int parseInt(String option, String value, int minimum) {
+        int parsed;
+        try {
+            parsed = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " expects a number, got: " + value);
+        }
+        if (parsed < minimum) {
+            throw new IllegalArgumentException(option + " must be at least " + minimum + ", got: " + value);
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,199 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+/*
+    Writes a synthetic IG tree shaped like a MADiE export, for load testing the cleaner without real measure data:
+
+        input/tests/measure-<m>/<case>/measure<m>-case<c>-bundle.json     test case bundles
+        input/resources/Organization-<n>.json                               shared resources the bundles point to
+        http_request_fail_<timestamp>.log                                   the missing references a RefreshIG would report
+
+    Bundles carry everything the cleaner fixes: numeric ids, ids with spaces, ids over 64 characters,
+    https://madie.cms.gov/ references, Practitioner/example, and references to Locations and Practitioners that
+    exist nowhere (those are the ones logged). Resources are built from the ResourceFactory templates. Files are
+    written as they're generated and nothing is kept between them, and the same seed always gives the same tree.
+
+    java -cp MADiEDataCleaner-jar-with-dependencies.jar com.icf.ecqm.madie.data.cleaner.CorpusGenerator <outputDir> <files>
+        [--seed N] [--server URL] [--cases-per-measure N]
+ */
+public class CorpusGenerator {
+    //one shared resource per this many files:
+    private static final int FILES_PER_SHARED_RESOURCE = 20;
+
+    private final Path outputDir;
+    private final int files;
+    private final String serverUrl;
+    private final int casesPerMeasure;
+    private final Random random;
+
+    private int loggedReferences = 0;
+
+    public CorpusGenerator(Path outputDir, int files, long seed, String serverUrl, int casesPerMeasure) {
+        this.outputDir = outputDir;
+        this.files = files;
+        this.serverUrl = serverUrl;
+        this.casesPerMeasure = casesPerMeasure;
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CorpusGenerator <outputDir> <files> [--seed N] [--server URL] [--cases-per-measure N]");
+            System.exit(2);
+            return;
+        }
+        Path outputDir = Paths.get(args[0]).toAbsolutePath();
+        int files;
+        long seed = 1;
+        String serverUrl = "http://localhost:8080/fhir";
+        int casesPerMeasure = 100;
+        try {
+            files = Integer.parseInt(args[1]);
+            for (int i = 2; i < args.length; i++) {
+                String lower = args[i].toLowerCase();
+                if (lower.equals("--seed")) {
+                    seed = Long.parseLong(CleanerOptions.valueAfter(args, i++));
+                } else if (lower.equals("--server")) {
+                    serverUrl = CleanerOptions.valueAfter(args, i++);
+                } else if (lower.equals("--cases-per-measure")) {
+                    casesPerMeasure = Integer.parseInt(CleanerOptions.valueAfter(args, i++));
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Expected a number: " + e.getMessage());
+            System.exit(2);
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        if (files < 1 || casesPerMeasure < 1) {
+            System.err.println("<files> and --cases-per-measure must be at least 1");
+            System.exit(2);
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        new CorpusGenerator(outputDir, files, seed, serverUrl, casesPerMeasure).generate();
+        System.out.println("\n\rGenerated " + files + " files in " + outputDir + " (" + (System.currentTimeMillis() - start) + " ms).");
+    }
+
+    public void generate() throws IOException {
+        Path resourcesDir = outputDir.resolve("input").resolve("resources");
+        Files.createDirectories(resourcesDir);
+
+        //shared resources first, so every bundle can point at one:
+        int sharedResources = Math.max(1, files / FILES_PER_SHARED_RESOURCE);
+        for (int n = 0; n < sharedResources; n++) {
+            //numeric ids, the cleaner renames them to Organization-<n>:
+            writeJson(resourcesDir.resolve("Organization-" + n + ".json"), ResourceFactory.createObject("Organization", String.valueOf(n)));
+        }
+
+        String logName = "http_request_fail_" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMddHHmmss")) + ".log";
+        try (Writer log = Files.newBufferedWriter(outputDir.resolve(logName))) {
+            for (int c = 0; c < files - sharedResources; c++) {
+                int measure = c / casesPerMeasure;
+                String fileName = "measure" + measure + "-case" + c + "-bundle.json";
+                Path caseDir = outputDir.resolve("input").resolve("tests").resolve("measure-" + measure).resolve("case-" + c);
+                Files.createDirectories(caseDir);
+                writeJson(caseDir.resolve(fileName), testCaseBundle(c, sharedResources, fileName, log));
+
+                if (c % 10000 == 0) {
+                    System.out.print("\rGenerated " + (c + sharedResources) + " of " + files + " files.");
+                }
+            }
+        }
+        System.out.print("\rGenerated " + files + " of " + files + " files, " + loggedReferences + " missing references logged.");
+    }
+
+    private JSONObject testCaseBundle(int c, int sharedResources, String fileName, Writer log) throws IOException {
+        //30% numeric patient ids, 20% encounter ids with spaces, 10% condition ids over 64 characters:
+        String patientId = random.nextInt(10) < 3 ? String.valueOf(100000 + c) : "patient-" + c;
+        String encounterId = random.nextInt(10) < 2 ? "encounter " + c + " visit" : "encounter-" + c;
+        String conditionId = random.nextInt(10) < 1
+                ? "condition-" + c + "-with-an-identifier-long-enough-to-be-rejected-by-a-fhir-server"
+                : "condition-" + c;
+        String procedureId = "procedure-" + c;
+
+        JSONObject patient = ResourceFactory.createObject("Patient", patientId);
+        //deterministic names instead of the template's random ones:
+        patient.put("name", new JSONArray().put(new JSONObject()
+                .put("family", "Family" + c)
+                .put("given", new JSONArray().put("Given" + c))));
+
+        JSONObject encounter = ResourceFactory.createObject("Encounter", encounterId)
+                .put("subject", reference(random.nextBoolean() ? "https://madie.cms.gov/Patient/" + patientId : "Patient/" + patientId))
+                .put("serviceProvider", reference("Organization/" + random.nextInt(sharedResources)));
+
+        JSONObject condition = ResourceFactory.createObject("Condition", conditionId)
+                .put("subject", reference("Patient/" + patientId))
+                .put("encounter", reference("Encounter/" + encounterId));
+
+        JSONObject procedure = ResourceFactory.createObject("Procedure", procedureId)
+                .put("subject", reference("Patient/" + patientId))
+                .put("reasonReference", new JSONArray().put(reference("Condition/" + conditionId)))
+                .put("performer", new JSONArray().put(new JSONObject()
+                        .put("actor", reference(random.nextInt(4) == 0 ? "Practitioner/example" : "http://myGoodHealthcare.com/fhir/Practitioner/practitioner-123456"))));
+
+        //20% of cases point at a Location and a Practitioner nobody defines, as a RefreshIG would report them:
+        if (random.nextInt(10) < 2) {
+            String locationId = String.valueOf(500000 + c);
+            String practitionerId = "practitioner-" + c;
+            encounter.put("location", new JSONArray().put(new JSONObject().put("location", reference("Location/" + locationId))));
+            encounter.put("participant", new JSONArray().put(new JSONObject().put("individual", reference("Practitioner/" + practitionerId))));
+            logMissing(log, fileName, "Location", "Location-" + locationId, "Encounter.location.location");
+            logMissing(log, fileName, "Practitioner", practitionerId, "Encounter.participant.individual");
+        }
+
+        JSONArray entries = new JSONArray()
+                .put(entry(patient))
+                .put(entry(encounter))
+                .put(entry(condition))
+                .put(entry(procedure));
+        return new JSONObject()
+                .put("resourceType", "Bundle")
+                .put("id", "case-" + c)
+                .put("type", "transaction")
+                .put("entry", entries);
+    }
+
+    private static JSONObject reference(String reference) {
+        return new JSONObject().put("reference", reference);
+    }
+
+    private static JSONObject entry(JSONObject resource) {
+        String relativeUrl = resource.getString("resourceType") + "/" + resource.getString("id");
+        return new JSONObject()
+                .put("fullUrl", "https://madie.cms.gov/" + relativeUrl)
+                .put("resource", resource)
+                .put("request", new JSONObject()
+                        .put("method", "PUT")
+                        .put("url", relativeUrl));
+    }
+
+    private void logMissing(Writer log, String fileName, String resourceType, String id, String path) throws IOException {
+        log.write("Error uploading " + fileName + ": " + serverUrl + ": HTTP 400 Bad Request: Resource " + resourceType + "/" + id
+                + " not found, specified in path: " + path + "\n");
+        loggedReferences++;
+    }
+
+    private static void writeJson(Path file, JSONObject json) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file)) {
+            writer.write(json.toString(2));
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Watches the IG directory for --watch. Every directory the FileWalker would descend into is watched, and new ones
+    as they appear. Changes are handed out in debounced batches: a batch is only returned once debounceMillis have
+    passed without another event (or MAX_BATCH_MILLIS after its first one), so a burst of writes such as an export
+    being unpacked is handled once, after it's done.
+
+    A batch holds the files the walker accepts and the http_request_fail logs in the IG directory that were created
+    or modified and still exist, and the paths that were deleted (or moved away) and are still gone. A deleted
+    directory is reported as the directory alone, whatever was in it went with it.
+ */
+public class DirectoryWatcher implements Closeable {
+    protected static final long MAX_BATCH_MILLIS = 10_000;
+
+    private final Path root;
+    private final FileWalker walker;
+    private final long debounceMillis;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+
+    public DirectoryWatcher(Path root, FileWalker walker, long debounceMillis) throws IOException {
+        this.root = root;
+        this.walker = walker;
+        this.debounceMillis = debounceMillis;
+        this.watchService = root.getFileSystem().newWatchService();
+        register(root);
+    }
+
+    //blocks until something changed and then settled:
+    public Batch nextBatch() throws InterruptedException, IOException {
+        Set<Path> changed = new TreeSet<>();
+        boolean overflow = false;
+
+        WatchKey key = watchService.take();
+        long deadline = System.currentTimeMillis() + MAX_BATCH_MILLIS;
+        while (key != null) {
+            Path directory = directories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    overflow = true;
+                    continue;
+                }
+                if (directory == null) {
+                    continue;
+                }
+                Path path = directory.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    //files can land in a new directory before it's registered, so whatever is already there counts:
+                    if (walker.acceptsDirectory(path)) {
+                        changed.addAll(register(path));
+                    }
+                } else {
+                    changed.add(path);
+                }
+            }
+            if (!key.reset()) {
+                directories.remove(key);
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            key = remaining > 0 ? watchService.poll(Math.min(debounceMillis, remaining), TimeUnit.MILLISECONDS) : null;
+        }
+
+        //events were dropped, every file may have changed:
+        if (overflow) {
+            System.out.println("\n\rToo many changes at once, rescanning " + root);
+            changed.addAll(register(root));
+        }
+
+        //a path that was deleted and created again is a change, one that was created and deleted again is a delete:
+        Batch batch = new Batch();
+        for (Path path : changed) {
+            if (Files.isRegularFile(path)) {
+                if (isLogFile(path) || walker.acceptsFile(path)) {
+                    batch.changed.add(path);
+                }
+            } else if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                batch.deleted.add(path);
+            }
+        }
+        return batch;
+    }
+
+    private boolean isLogFile(Path path) {
+        return root.equals(path.getParent()) && LogIngester.isLogFile(path.getFileName().toString());
+    }
+
+    //watches the directory and every accepted one under it (again, for those already watched), returns the files in them:
+    private List<Path> register(Path start) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                if (!directory.equals(root) && !walker.acceptsDirectory(directory)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                WatchKey key = directory.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                directories.put(key, directory);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            //a directory removed while it's being walked:
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    public static class Batch {
+        private final List<Path> changed = new ArrayList<>();
+        private final List<Path> deleted = new ArrayList<>();
+
+        //created or modified files, sorted:
+        public List<Path> getChanged() {
+            return changed;
+        }
+
+        //deleted files and directories, sorted:
+        public List<Path> getDeleted() {
+            return deleted;
+        }
+
+        public boolean isEmpty() {
+            return changed.isEmpty() && deleted.isEmpty();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
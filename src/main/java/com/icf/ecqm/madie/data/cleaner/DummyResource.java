@@ -0,0 +1,46 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+//a "barebones" resource built from ResourceFactory for a reference that an http log reported as missing, kept as
+//the json text the template rendered:
+public class DummyResource {
+    private final ParsedLogEntry logEntry;
+    private final String resourceId;
+    private final String resource;
+
+    public DummyResource(ParsedLogEntry logEntry, String resourceId, String resource) {
+        this.logEntry = logEntry;
+        this.resourceId = resourceId;
+        this.resource = resource;
+    }
+
+    public ParsedLogEntry getLogEntry() {
+        return logEntry;
+    }
+
+    public String getResourceType() {
+        return logEntry.getResourceType();
+    }
+
+    public String getResourceId() {
+        return resourceId;
+    }
+
+    public String getResource() {
+        return resource;
+    }
+
+    //server base url without a trailing slash:
+    public String getServerUrl() {
+        String url = logEntry.getUrl();
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    //Type/id, relative to the server:
+    public String getRelativeUrl() {
+        return getResourceType() + "/" + resourceId;
+    }
+
+    public String getResourceUrl() {
+        return getServerUrl() + "/" + getRelativeUrl();
+    }
+}
@@ -0,0 +1,476 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.*;
+
+/*
+    Single forward pass over a FHIR json file that applies the same clean up as the old String.replace +
+    JSONObject round trip:
+      - external url prefixes are stripped and Practitioner/example is swapped out
+      - resource ids are fixed (FHIRJsonUtil.fixResourceId)
+      - references are fixed (FHIRJsonUtil.rewriteReference), wherever they sit in the resource, as long as
+        their path is accepted by the ReferenceMatcher
+
+    Tokens are copied straight from the reader to the writer. The only time anything is held back is when a
+    decision depends on a key that hasn't been read yet (an id that needs fixing before its resourceType, or
+    anything on a root object that may still turn out to be a Bundle). In that case tokens are buffered until
+    the owning object answers the question, so memory is bounded by a single resource rather than the bundle.
+ */
+public class FHIRStreamRewriter {
+
+    private final Path jsonFile;
+    private final ResourceIndex resourceIndex;
+    private final ReferenceMatcher referenceMatcher;
+    private final boolean mapResourceIds;
+    private final RunReport report;
+    private final ReferenceGraph graph;
+    private final List<String[]> recordedResources = new ArrayList<>();
+    private final List<String> references = new ArrayList<>();
+    private int idRewrites = 0;
+    private int referenceRewrites = 0;
+
+    private JsonReader reader;
+    private TokenSink out;
+
+    public FHIRStreamRewriter(Path jsonFile, ResourceIndex resourceIndex) {
+        this(jsonFile, resourceIndex, ReferenceMatcher.ALL, null, null, false);
+    }
+
+    //with mapResourceIds set, every resource is also recorded the way the mapping phase would (single pass mode).
+    //report may be null, the rewrites are then not recorded anywhere. graph may be null, otherwise the file's
+    //references are recorded in it once the rewrite completes:
+    public FHIRStreamRewriter(Path jsonFile, ResourceIndex resourceIndex, ReferenceMatcher referenceMatcher, RunReport report,
+                              ReferenceGraph graph, boolean mapResourceIds) {
+        this.jsonFile = jsonFile;
+        this.resourceIndex = resourceIndex;
+        this.referenceMatcher = referenceMatcher;
+        this.report = report;
+        this.graph = graph;
+        this.mapResourceIds = mapResourceIds;
+    }
+
+    public int getIdRewrites() {
+        return idRewrites;
+    }
+
+    public int getReferenceRewrites() {
+        return referenceRewrites;
+    }
+
+    //{id, resourceType} pairs recorded while rewriting, only filled in when mapResourceIds is set:
+    public List<String[]> getRecordedResources() {
+        return recordedResources;
+    }
+
+    //rewrites the json read from 'in' onto 'out', every id and reference changed goes to the report:
+    public void rewrite(Reader in, Writer writer) throws IOException {
+        reader = new JsonReader(in);
+        JsonWriter jsonWriter = new JsonWriter(writer);
+        jsonWriter.setIndent("    ");
+        out = new TokenSink(jsonWriter);
+
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            throw new IllegalStateException("Expected a json object at the root of " + jsonFile);
+        }
+        copyResourceObject(true);
+        if (reader.peek() != JsonToken.END_DOCUMENT) {
+            throw new IllegalStateException("Unexpected content after the root object of " + jsonFile);
+        }
+
+        jsonWriter.flush();
+        if (graph != null) {
+            graph.record(jsonFile, references);
+        }
+    }
+
+    //root object, or the 'resource' of a bundle entry:
+    private void copyResourceObject(boolean root) throws IOException {
+        ResourceState resource = new ResourceState(root);
+
+        reader.beginObject();
+        out.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            out.name(name);
+            JsonToken token = reader.peek();
+
+            if (name.equals("resourceType") && token == JsonToken.STRING) {
+                String resourceType = cleanString(reader.nextString(), false);
+                out.value(resourceType);
+                resource.onResourceType(resourceType);
+            } else if (name.equals("id") && token == JsonToken.STRING) {
+                String rawId = reader.nextString();
+                resource.rawId = rawId;
+                resource.onId(cleanString(rawId, false));
+            } else if (root && name.equals("entry") && token == JsonToken.BEGIN_ARRAY) {
+                resource.onBundle();
+                copyEntries();
+            } else {
+                copyResourceValue(resource, name);
+            }
+        }
+        reader.endObject();
+        out.endObject();
+
+        resource.onEnd();
+    }
+
+    private void copyEntries() throws IOException {
+        reader.beginArray();
+        out.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                copyValue(false);
+                continue;
+            }
+            reader.beginObject();
+            out.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                out.name(name);
+                if (name.equals("resource") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    copyResourceObject(false);
+                } else {
+                    copyValue(false);
+                }
+            }
+            reader.endObject();
+            out.endObject();
+        }
+        reader.endArray();
+        out.endArray();
+    }
+
+    //copies a value somewhere inside a resource, rewriting every "reference" the matcher accepts. 'path' is the
+    //dotted path of the value relative to the resource, arrays don't add a segment:
+    private void copyResourceValue(ResourceState resource, String path) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                out.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    out.name(name);
+                    if (name.equals("reference") && reader.peek() == JsonToken.STRING) {
+                        String reference = cleanString(reader.nextString(), true);
+                        boolean matches = referenceMatcher.matches(path);
+                        if (matches) {
+                            resource.onReference(path, reference);
+                        } else {
+                            out.value(reference);
+                        }
+                        if (graph != null) {
+                            references.add(matches ? FHIRJsonUtil.rewriteReference(reference) : reference);
+                        }
+                    } else if (name.equals("reference")) {
+                        copyValue(true);
+                    } else {
+                        copyResourceValue(resource, path + "." + name);
+                    }
+                }
+                reader.endObject();
+                out.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                out.beginArray();
+                while (reader.hasNext()) {
+                    copyResourceValue(resource, path);
+                }
+                reader.endArray();
+                out.endArray();
+                break;
+            default:
+                copyValue(false);
+        }
+    }
+
+    //copies any value as-is, apart from the url clean up applied to every string:
+    private void copyValue(boolean isReference) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                out.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    out.name(name);
+                    copyValue(name.equals("reference"));
+                }
+                reader.endObject();
+                out.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                out.beginArray();
+                while (reader.hasNext()) {
+                    copyValue(false);
+                }
+                reader.endArray();
+                out.endArray();
+                break;
+            case STRING:
+                out.value(cleanString(reader.nextString(), isReference));
+                break;
+            case NUMBER:
+                //keep the number exactly as written:
+                out.rawValue(reader.nextString());
+                break;
+            case BOOLEAN:
+                out.rawValue(reader.nextBoolean() ? "true" : "false");
+                break;
+            case NULL:
+                reader.nextNull();
+                out.rawValue("null");
+                break;
+            default:
+                throw new IllegalStateException("Unexpected token " + reader.peek() + " in " + jsonFile);
+        }
+    }
+
+    //remove external references forcefully, same as the String.replace calls this replaces:
+    protected static String cleanString(String value, boolean isReference) {
+        if (isReference && value.startsWith("https://madie.cms.gov/")) {
+            value = value.substring("https://madie.cms.gov/".length());
+        }
+        return value
+                .replace("http://myGoodHealthcare.com/fhir/", "")
+                .replace("http://GoodHealthcare.com/fhir/", "")
+                .replace("Practitioner/example", "Practitioner/practitioner-123456");
+    }
+
+    private void logUpdate(String label, String reference, String newReference) {
+        referenceRewrites++;
+        if (report != null) {
+            report.referenceRewrite(jsonFile, label, reference, newReference);
+        }
+    }
+
+    private void logIdUpdate(String resourceType, String id, String newId) {
+        if (id.equals(newId)) {
+            return;
+        }
+        idRewrites++;
+        if (report != null) {
+            report.idRewrite(jsonFile, resourceType, id, newId);
+        }
+    }
+
+    /*
+        Tracks what is known about a resource object while it is being copied. Everything that is decided on the
+        spot is written straight through, anything else is parked as a Pending value in the sink.
+     */
+    private class ResourceState {
+        private final boolean root;
+        private String resourceType;
+        private String rawId;
+        private boolean hasId = false;
+        private boolean bundle = false;
+        private String id;
+        private Pending idPending;
+        private final List<Pending> referencePendings = new ArrayList<>();
+        private final List<String[]> pendingReferenceLogs = new ArrayList<>();
+
+        private ResourceState(boolean root) {
+            this.root = root;
+        }
+
+        private void onResourceType(String resourceType) throws IOException {
+            this.resourceType = resourceType;
+            if (!root && idPending != null) {
+                resolveId();
+            }
+        }
+
+        private void onId(String id) throws IOException {
+            this.id = id;
+            this.hasId = true;
+            if (!FHIRJsonUtil.needsIdFix(id)) {
+                out.value(id);
+            } else if (!root && resourceType != null) {
+                out.value(fixId());
+            } else {
+                idPending = new Pending(id);
+                out.pending(idPending);
+            }
+        }
+
+        private void onBundle() throws IOException {
+            //a root with 'entry' is a bundle, its own id and references are left alone:
+            bundle = true;
+            resolveRoot();
+        }
+
+        private void onReference(String label, String reference) throws IOException {
+            String newReference = FHIRJsonUtil.rewriteReference(reference);
+            if (newReference.equals(reference)) {
+                out.value(reference);
+            } else if (!root) {
+                out.value(newReference);
+                applyReference(label, reference, newReference);
+            } else if (bundle) {
+                out.value(reference);
+            } else {
+                Pending pending = new Pending(reference);
+                pending.replacement = newReference;
+                referencePendings.add(pending);
+                pendingReferenceLogs.add(new String[]{label, reference, newReference});
+                out.pending(pending);
+            }
+        }
+
+        private void onEnd() throws IOException {
+            if (root) {
+                resolveRoot();
+            } else if (idPending != null) {
+                resolveId();
+            }
+
+            //same resources updateResourceIdMap picks up: bundle entries with an id, or an id'd root without entries
+            if (mapResourceIds && hasId && !bundle) {
+                FHIRJsonUtil.recordResourceId(rawId, resourceType, resourceIndex, jsonFile);
+                recordedResources.add(new String[]{rawId, resourceType});
+            }
+        }
+
+        private void resolveId() throws IOException {
+            Pending pending = idPending;
+            idPending = null;
+            out.resolve(pending, resourceType != null && !bundle ? fixId() : pending.original);
+        }
+
+        private void resolveRoot() throws IOException {
+            if (idPending != null) {
+                resolveId();
+            }
+            //the root is only treated as a resource when it has an id and no entries:
+            boolean isResource = hasId && !bundle;
+            for (int i = 0; i < referencePendings.size(); i++) {
+                Pending pending = referencePendings.get(i);
+                if (isResource) {
+                    String[] update = pendingReferenceLogs.get(i);
+                    applyReference(update[0], update[1], update[2]);
+                    out.resolve(pending, pending.replacement);
+                } else {
+                    out.resolve(pending, pending.original);
+                }
+            }
+            referencePendings.clear();
+            pendingReferenceLogs.clear();
+        }
+
+        private String fixId() {
+            String newId = FHIRJsonUtil.fixResourceId(resourceType, id);
+            logIdUpdate(resourceType, id, newId);
+            return newId;
+        }
+
+        //a rewrite only depends on the reference itself, never on the state of the file it points to:
+        private void applyReference(String label, String reference, String newReference) {
+            logUpdate(label, reference, newReference);
+        }
+    }
+
+    //a string value whose final form isn't known yet:
+    private static class Pending {
+        private final String original;
+        private String replacement;
+        private String value;
+
+        private Pending(String original) {
+            this.original = original;
+        }
+    }
+
+    /*
+        Writes tokens through to the JsonWriter until a Pending value shows up, then buffers everything until
+        every pending value has been resolved and replays the buffer in order.
+     */
+    private static class TokenSink {
+        private static final int BEGIN_OBJECT = 0, END_OBJECT = 1, BEGIN_ARRAY = 2, END_ARRAY = 3, NAME = 4,
+                STRING = 5, RAW = 6, PENDING = 7;
+
+        private final JsonWriter writer;
+        private List<Object[]> buffer = null;
+        private int unresolved = 0;
+
+        private TokenSink(JsonWriter writer) {
+            this.writer = writer;
+        }
+
+        private void beginObject() throws IOException {
+            if (buffer != null) buffer.add(new Object[]{BEGIN_OBJECT, null});
+            else writer.beginObject();
+        }
+
+        private void endObject() throws IOException {
+            if (buffer != null) buffer.add(new Object[]{END_OBJECT, null});
+            else writer.endObject();
+        }
+
+        private void beginArray() throws IOException {
+            if (buffer != null) buffer.add(new Object[]{BEGIN_ARRAY, null});
+            else writer.beginArray();
+        }
+
+        private void endArray() throws IOException {
+            if (buffer != null) buffer.add(new Object[]{END_ARRAY, null});
+            else writer.endArray();
+        }
+
+        private void name(String name) throws IOException {
+            if (buffer != null) buffer.add(new Object[]{NAME, name});
+            else writer.name(name);
+        }
+
+        private void value(String value) throws IOException {
+            if (buffer != null) buffer.add(new Object[]{STRING, value});
+            else writer.value(value);
+        }
+
+        private void rawValue(String value) throws IOException {
+            if (buffer != null) buffer.add(new Object[]{RAW, value});
+            else writer.jsonValue(value);
+        }
+
+        private void pending(Pending pending) {
+            if (buffer == null) {
+                buffer = new ArrayList<>();
+            }
+            buffer.add(new Object[]{PENDING, pending});
+            unresolved++;
+        }
+
+        private void resolve(Pending pending, String value) throws IOException {
+            pending.value = value;
+            unresolved--;
+            if (unresolved == 0) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            List<Object[]> events = buffer;
+            buffer = null;
+            for (Object[] event : events) {
+                switch ((int) event[0]) {
+                    case BEGIN_OBJECT: writer.beginObject(); break;
+                    case END_OBJECT: writer.endObject(); break;
+                    case BEGIN_ARRAY: writer.beginArray(); break;
+                    case END_ARRAY: writer.endArray(); break;
+                    case NAME: writer.name((String) event[1]); break;
+                    case STRING: writer.value((String) event[1]); break;
+                    case RAW: writer.jsonValue((String) event[1]); break;
+                    case PENDING: writer.value(((Pending) event[1]).value); break;
+                    default: throw new IllegalStateException("Unknown token " + event[0]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Decides from the raw bytes of a file whether the cleaner could change anything in it, so files that are
+    already clean skip the parse/rewrite/write path. A file needs cleaning when it has any of:
+      - an "id" value that FHIRJsonUtil.needsIdFix flags (all digits, spaces, over 64 characters)
+      - a "reference" value starting with https://madie.cms.gov/ or that FHIRJsonUtil.rewriteReference changes
+      - GoodHealthcare.com/fhir/ or Practitioner/example anywhere
+      - an escaped slash or unicode escape anywhere, or any escape in an id or reference, since the raw bytes
+        can't be compared to the rules then
+    The check errs towards "needs cleaning": the full path runs whenever it can't be sure. Files of
+    MAPPED_THRESHOLD bytes or more are memory-mapped instead of read onto the heap.
+ */
+public class FilePrefilter {
+    protected static final long MAPPED_THRESHOLD = 1024 * 1024;
+
+    private static final byte[] ID_KEY = "\"id\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] REFERENCE_KEY = "\"reference\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] GOOD_HEALTHCARE = "GoodHealthcare.com/fhir/".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PRACTITIONER_EXAMPLE = "Practitioner/example".getBytes(StandardCharsets.US_ASCII);
+    private static final String MADIE_PREFIX = "https://madie.cms.gov/";
+
+    public static boolean needsCleaning(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return true;
+            }
+            ByteBuffer bytes;
+            if (size >= MAPPED_THRESHOLD) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                bytes = ByteBuffer.allocate((int) size);
+                while (bytes.hasRemaining() && channel.read(bytes) != -1) {
+                    //keep reading until the buffer is full
+                }
+                bytes.flip();
+            }
+            return needsCleaning(bytes);
+        }
+    }
+
+    protected static boolean needsCleaning(ByteBuffer bytes) {
+        int limit = bytes.limit();
+        for (int i = 0; i < limit; i++) {
+            switch (bytes.get(i)) {
+                case '"':
+                    if (startsWith(bytes, i, ID_KEY)) {
+                        String id = keyValue(bytes, i + ID_KEY.length);
+                        if (id == null || FHIRJsonUtil.needsIdFix(id)) {
+                            return true;
+                        }
+                    } else if (startsWith(bytes, i, REFERENCE_KEY)) {
+                        String reference = keyValue(bytes, i + REFERENCE_KEY.length);
+                        if (reference == null || reference.startsWith(MADIE_PREFIX)
+                                || !FHIRJsonUtil.rewriteReference(reference).equals(reference)) {
+                            return true;
+                        }
+                    }
+                    break;
+                case '\\':
+                    if (i + 1 < limit && (bytes.get(i + 1) == '/' || bytes.get(i + 1) == 'u')) {
+                        return true;
+                    }
+                    //skip the escaped character, it can't start anything we look for
+                    i++;
+                    break;
+                case 'G':
+                    if (startsWith(bytes, i, GOOD_HEALTHCARE)) {
+                        return true;
+                    }
+                    break;
+                case 'P':
+                    if (startsWith(bytes, i, PRACTITIONER_EXAMPLE)) {
+                        return true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return false;
+    }
+
+    //the string value of a key ending at 'position', "" when the key isn't followed by a string (it's then not one
+    //the cleaner rewrites), or null when the value has escapes and can't be judged from the bytes:
+    private static String keyValue(ByteBuffer bytes, int position) {
+        int limit = bytes.limit();
+        int i = skipWhitespace(bytes, position);
+        if (i >= limit || bytes.get(i) != ':') {
+            //"id" used as a value, not a key
+            return "";
+        }
+        i = skipWhitespace(bytes, i + 1);
+        if (i >= limit || bytes.get(i) != '"') {
+            return "";
+        }
+        int start = i + 1;
+        for (int end = start; end < limit; end++) {
+            byte b = bytes.get(end);
+            if (b == '\\') {
+                return null;
+            }
+            if (b == '"') {
+                byte[] value = new byte[end - start];
+                for (int j = 0; j < value.length; j++) {
+                    value[j] = bytes.get(start + j);
+                }
+                return new String(value, StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private static int skipWhitespace(ByteBuffer bytes, int i) {
+        while (i < bytes.limit()) {
+            byte b = bytes.get(i);
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean startsWith(ByteBuffer bytes, int position, byte[] prefix) {
+        if (position + prefix.length > bytes.limit()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes.get(position + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+        The {id, resourceType} pairs FHIRJsonUtil.updateResourceIdMap would record for a clean file, read without
+        building the json: only the root keys and each entry's resource id and resourceType are looked at,
+        everything else is skipped. Returns null when the file isn't shaped the way updateResourceIdMap expects,
+        the caller then maps it the usual way. When references isn't null, every "reference" string in the file is
+        added to it instead of being skipped over (a clean file's references are already in their final form).
+     */
+    public static List<String[]> readResourceIds(Path file, List<String> references) throws IOException {
+        try (Reader in = Files.newBufferedReader(file)) {
+            JsonReader reader = new JsonReader(in);
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return null;
+            }
+            String[] root = new String[2];
+            List<String[]> entries = null;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("entry")) {
+                    if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                        return null;
+                    }
+                    entries = readEntries(reader, references);
+                    if (entries == null) {
+                        return null;
+                    }
+                } else if (!readIdOrType(reader, name, root, references)) {
+                    return null;
+                }
+            }
+            reader.endObject();
+
+            if (entries != null) {
+                return entries;
+            }
+            List<String[]> resources = new ArrayList<>();
+            if (root[0] != null) {
+                resources.add(root);
+            }
+            return resources;
+        }
+    }
+
+    private static List<String[]> readEntries(JsonReader reader, List<String> references) throws IOException {
+        List<String[]> resources = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return null;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (!name.equals("resource")) {
+                    skipValue(reader, false, references);
+                    continue;
+                }
+                if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    return null;
+                }
+                String[] resource = new String[2];
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (!readIdOrType(reader, reader.nextName(), resource, references)) {
+                        return null;
+                    }
+                }
+                reader.endObject();
+                if (resource[0] != null) {
+                    resources.add(resource);
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+        return resources;
+    }
+
+    //fills in {id, resourceType} from a string value and skips anything else, false for a non-string id or type:
+    private static boolean readIdOrType(JsonReader reader, String name, String[] resource, List<String> references) throws IOException {
+        int index = name.equals("id") ? 0 : name.equals("resourceType") ? 1 : -1;
+        if (index < 0) {
+            skipValue(reader, name.equals("reference"), references);
+            return true;
+        }
+        if (reader.peek() != JsonToken.STRING) {
+            return false;
+        }
+        resource[index] = reader.nextString();
+        return true;
+    }
+
+    //skips a value, picking up the "reference" strings in it on the way when references isn't null:
+    private static void skipValue(JsonReader reader, boolean isReference, List<String> references) throws IOException {
+        if (references == null) {
+            reader.skipValue();
+            return;
+        }
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    skipValue(reader, reader.nextName().equals("reference"), references);
+                }
+                reader.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    skipValue(reader, false, references);
+                }
+                reader.endArray();
+                break;
+            case STRING:
+                if (isReference) {
+                    references.add(reader.nextString());
+                } else {
+                    reader.skipValue();
+                }
+                break;
+            default:
+                reader.skipValue();
+        }
+    }
+}
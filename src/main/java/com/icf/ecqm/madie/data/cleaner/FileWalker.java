@@ -0,0 +1,191 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/*
+    Finds the files to clean under the IG directory and hands each one over as soon as it's found, so work on the
+    first files starts while the rest of the tree is still being listed. Given a pool, each directory is listed as its
+    own task on it, so subdirectories are walked in parallel on the same workers that process the files.
+
+    Globs are matched against the path relative to the IG directory, with '/' separators. A directory matching an
+    exclude glob is skipped along with everything under it. A pattern starting with "**" and a slash also matches
+    at the top level, so the target default skips target directories at any depth, including the IG's own.
+ */
+public class FileWalker {
+    public static final List<String> DEFAULT_INCLUDES = List.of("**.json");
+    //build output, IG Publisher working folders, vcs and tooling, and the terminology the cleaner never touches:
+    public static final List<String> DEFAULT_EXCLUDES = List.of(
+            "**/target", "**/.git", "**/node_modules",
+            "output", "temp", "template", "txCache", "input-cache",
+            "input/vocabulary");
+
+    private final Path root;
+    private final List<PathMatcher> includes;
+    private final List<PathMatcher> excludes;
+    private final Set<Path> excludedPaths = new HashSet<>();
+
+    public FileWalker(Path root, List<String> includeGlobs, List<String> excludeGlobs) {
+        this.root = root;
+        this.includes = compile(includeGlobs.isEmpty() ? DEFAULT_INCLUDES : includeGlobs);
+        this.excludes = compile(excludeGlobs);
+    }
+
+    //a file or directory that's never returned, e.g. the cleaner's own output. Null is ignored:
+    public void excludePath(Path path) {
+        if (path != null) {
+            excludedPaths.add(path.toAbsolutePath().normalize());
+        }
+    }
+
+    //calls onFile for every matching file as it's found (from the pool's threads) and returns them all, sorted. pool
+    //may be null to walk on the calling thread:
+    public List<Path> walk(ExecutorService pool, Consumer<Path> onFile) throws IOException {
+        Queue<Path> found = new ConcurrentLinkedQueue<>();
+        Consumer<Path> collect = file -> {
+            found.add(file);
+            onFile.accept(file);
+        };
+
+        if (pool == null) {
+            Queue<Path> directories = new ArrayDeque<>();
+            directories.add(root);
+            while (!directories.isEmpty()) {
+                listDirectory(directories.poll(), directories::add, collect);
+            }
+        } else {
+            walkInParallel(pool, collect);
+        }
+
+        List<Path> files = new ArrayList<>(found);
+        files.sort(null);
+        return files;
+    }
+
+    //the pool isn't shut down afterwards, it belongs to the caller:
+    private void walkInParallel(ExecutorService pool, Consumer<Path> collect) throws IOException {
+        AtomicInteger pending = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Object done = new Object();
+
+        Consumer<Path> submit = new Consumer<>() {
+            @Override
+            public void accept(Path directory) {
+                pending.incrementAndGet();
+                pool.execute(() -> {
+                    try {
+                        if (failure.get() == null) {
+                            listDirectory(directory, this, collect);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        if (pending.decrementAndGet() == 0) {
+                            synchronized (done) {
+                                done.notifyAll();
+                            }
+                        }
+                    }
+                });
+            }
+        };
+
+        try {
+            submit.accept(root);
+            synchronized (done) {
+                while (pending.get() > 0) {
+                    done.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while walking " + root, e);
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof UncheckedIOException) {
+            throw ((UncheckedIOException) t).getCause();
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new IOException("Failed to walk " + root, t);
+        }
+    }
+
+    private void listDirectory(Path directory, Consumer<Path> onDirectory, Consumer<Path> onFile) {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isDirectory()) {
+                    //links to directories aren't followed, same as Files.walk:
+                    if (acceptsDirectory(entry)) {
+                        onDirectory.accept(entry);
+                    }
+                } else if ((attributes.isRegularFile() || (attributes.isSymbolicLink() && Files.isRegularFile(entry)))
+                        && acceptsFile(entry)) {
+                    onFile.accept(entry);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //whether the walk descends into a directory under the root. Only the directory itself is checked, not its parents:
+    public boolean acceptsDirectory(Path directory) {
+        return !excludedPaths.contains(directory) && !matchesAny(excludes, relativize(directory));
+    }
+
+    //whether the walk returns a file under the root. Only the file itself is checked, not the directories above it:
+    public boolean acceptsFile(Path file) {
+        String relative = relativize(file);
+        return !excludedPaths.contains(file) && matchesAny(includes, relative) && !matchesAny(excludes, relative);
+    }
+
+    private String relativize(Path path) {
+        return root.relativize(path).toString().replace('\\', '/');
+    }
+
+    private static boolean matchesAny(List<PathMatcher> matchers, String relative) {
+        Path path = Path.of(relative);
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<PathMatcher> compile(List<String> globs) {
+        List<PathMatcher> matchers = new ArrayList<>();
+        for (String glob : globs) {
+            String pattern = glob.trim().replace('\\', '/');
+            matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+            //"**/x" should also match "x" at the top level:
+            if (pattern.startsWith("**/")) {
+                matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern.substring(3)));
+            }
+        }
+        return matchers;
+    }
+}
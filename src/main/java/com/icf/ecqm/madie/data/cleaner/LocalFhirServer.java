@@ -0,0 +1,343 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    A stand-in for the HAPI server RefreshIG uploads to, just enough of one to place dummy entries on without a live
+    server. Built on the JDK's own HttpServer and keeps resources in memory. It answers at http://127.0.0.1:<port>/fhir:
+
+        PUT  [type]/[id]            create or replace a resource
+        POST /  (Bundle)            transaction or batch of PUT (and POST) entries, answered with a -response Bundle
+        GET  [type]/[id]            read
+        GET  [type]?_id=a,b,c       search by id, what ServerCache asks
+
+    Every request can be slowed down by latencyMillis and fails with a 503 at errorRate, before it touches the store,
+    so a failed transaction has changed nothing. Nothing is validated beyond a resourceType and an id.
+
+    java -cp MADiEDataCleaner-jar-with-dependencies.jar com.icf.ecqm.madie.data.cleaner.LocalFhirServer
+        [--port N] [--latency MS] [--error-rate R]
+ */
+public class LocalFhirServer {
+    protected static final String CONTEXT_PATH = "/fhir";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMillis;
+    private final double errorRate;
+    //Type/id -> resource json:
+    private final Map<String, String> resources = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong resourcesWritten = new AtomicLong();
+
+    //port 0 picks a free one:
+    public LocalFhirServer(int port, long latencyMillis, double errorRate) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.errorRate = errorRate;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        //a thread per request, so latency delays requests rather than queueing them behind each other:
+        this.executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext(CONTEXT_PATH, this::handle);
+    }
+
+    /*
+        Without it, Nagle holds each response body back until the client acks the headers, ~40 ms a request. The JDK
+        reads it once, when the first server is created, and it applies to every HttpServer in the JVM, so it's set by
+        the mains that start a LocalFhirServer rather than by the constructor.
+     */
+    protected static void enableNoDelay() {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 8080;
+        long latencyMillis = 0;
+        double errorRate = 0;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String lower = args[i].toLowerCase();
+                if (lower.equals("--port")) {
+                    port = Integer.parseInt(CleanerOptions.valueAfter(args, i++));
+                } else if (lower.equals("--latency")) {
+                    latencyMillis = Long.parseLong(CleanerOptions.valueAfter(args, i++));
+                } else if (lower.equals("--error-rate")) {
+                    errorRate = Double.parseDouble(CleanerOptions.valueAfter(args, i++));
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Expected a number: " + e.getMessage());
+            System.exit(2);
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        if (latencyMillis < 0 || errorRate < 0 || errorRate > 1) {
+            System.err.println("--latency can't be negative and --error-rate must be between 0 and 1");
+            System.exit(2);
+            return;
+        }
+
+        enableNoDelay();
+        LocalFhirServer localServer = new LocalFhirServer(port, latencyMillis, errorRate);
+        localServer.start();
+        System.out.println("Listening on " + localServer.getBaseUrl() + " (latency " + latencyMillis + " ms, error rate " + errorRate
+                + "), Ctrl+C to stop.");
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + CONTEXT_PATH;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    //PUTs and POSTs stored, a resource written twice counts twice:
+    public long getResourcesWritten() {
+        return resourcesWritten.get();
+    }
+
+    //distinct resources held:
+    public int size() {
+        return resources.size();
+    }
+
+    public String get(String resourceType, String id) {
+        return resources.get(resourceType + "/" + id);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            byte[] body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = in.readAllBytes();
+            }
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                injectedErrors.incrementAndGet();
+                respond(exchange, 503, outcome("transient", "Injected error"));
+                return;
+            }
+
+            String path = exchange.getRequestURI().getPath().substring(CONTEXT_PATH.length());
+            if (path.startsWith("/")) {
+                path = path.substring(1);
+            }
+            if (path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+            String[] parts = path.isEmpty() ? new String[0] : path.split("/");
+            String method = exchange.getRequestMethod();
+
+            if (method.equals("POST") && parts.length == 0) {
+                handleBundle(exchange, new String(body, StandardCharsets.UTF_8));
+            } else if (method.equals("PUT") && parts.length == 2) {
+                handlePut(exchange, parts[0], parts[1], new String(body, StandardCharsets.UTF_8));
+            } else if (method.equals("GET") && parts.length == 2) {
+                String resource = resources.get(parts[0] + "/" + parts[1]);
+                if (resource == null) {
+                    respond(exchange, 404, outcome("not-found", "Resource " + parts[0] + "/" + parts[1] + " is not known"));
+                } else {
+                    respond(exchange, 200, resource);
+                }
+            } else if (method.equals("GET") && parts.length == 1) {
+                respond(exchange, 200, search(parts[0], exchange.getRequestURI().getRawQuery()));
+            } else {
+                respond(exchange, 400, outcome("not-supported", method + " " + exchange.getRequestURI().getPath() + " is not supported"));
+            }
+        } catch (InterruptedException e) {
+            //stopping, the client still gets an answer it can retry:
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, outcome("transient", "Server is shutting down"));
+        } catch (JSONException e) {
+            respond(exchange, 400, outcome("structure", String.valueOf(e.getMessage())));
+        } catch (RuntimeException e) {
+            respond(exchange, 500, outcome("exception", String.valueOf(e)));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handlePut(HttpExchange exchange, String resourceType, String id, String body) throws IOException {
+        JSONObject resource = new JSONObject(body);
+        String invalid = validate(resource, resourceType, id);
+        if (invalid != null) {
+            respond(exchange, 400, outcome("invalid", invalid));
+            return;
+        }
+        boolean created = store(resourceType, id, resource);
+        respond(exchange, created ? 201 : 200, resource.toString());
+    }
+
+    //transactions are checked completely before anything is stored, a batch stores the entries that are valid:
+    private void handleBundle(HttpExchange exchange, String body) throws IOException {
+        JSONObject bundle = new JSONObject(body);
+        String type = bundle.optString("type");
+        if (!"Bundle".equals(bundle.optString("resourceType")) || !(type.equals("transaction") || type.equals("batch"))) {
+            respond(exchange, 400, outcome("invalid", "Expected a transaction or batch Bundle"));
+            return;
+        }
+        boolean transaction = type.equals("transaction");
+        JSONArray entries = bundle.optJSONArray("entry");
+        if (entries == null) {
+            entries = new JSONArray();
+        }
+
+        //{resourceType, id} per entry, or the reason it can't be stored:
+        List<String[]> targets = new ArrayList<>();
+        for (int i = 0; i < entries.length(); i++) {
+            JSONObject entry = entries.getJSONObject(i);
+            JSONObject request = entry.optJSONObject("request");
+            JSONObject resource = entry.optJSONObject("resource");
+            String method = request != null ? request.optString("method") : "";
+            String[] url = request != null ? request.optString("url").split("/") : new String[0];
+            String invalid;
+            String[] target = null;
+            if (resource == null) {
+                invalid = "Entry " + i + " has no resource";
+            } else if (method.equals("PUT") && url.length == 2) {
+                target = new String[]{url[0], url[1]};
+                invalid = validate(resource, url[0], url[1]);
+            } else if (method.equals("POST") && url.length == 1) {
+                target = new String[]{url[0], UUID.randomUUID().toString()};
+                resource.put("id", target[1]);
+                invalid = validate(resource, url[0], target[1]);
+            } else {
+                invalid = "Entry " + i + ": only PUT [type]/[id] and POST [type] are supported";
+            }
+            if (invalid != null && transaction) {
+                respond(exchange, 400, outcome("invalid", invalid));
+                return;
+            }
+            targets.add(invalid != null ? new String[]{null, invalid} : target);
+        }
+
+        JSONArray responseEntries = new JSONArray();
+        for (int i = 0; i < entries.length(); i++) {
+            String[] target = targets.get(i);
+            JSONObject response = new JSONObject();
+            if (target[0] == null) {
+                response.put("status", "400 Bad Request");
+                response.put("outcome", new JSONObject(outcome("invalid", target[1])));
+            } else {
+                boolean created = store(target[0], target[1], entries.getJSONObject(i).getJSONObject("resource"));
+                response.put("status", created ? "201 Created" : "200 OK");
+                response.put("location", target[0] + "/" + target[1]);
+            }
+            responseEntries.put(new JSONObject().put("response", response));
+        }
+
+        JSONObject responseBundle = new JSONObject()
+                .put("resourceType", "Bundle")
+                .put("type", type + "-response")
+                .put("entry", responseEntries);
+        respond(exchange, 200, responseBundle.toString());
+    }
+
+    private String search(String resourceType, String query) {
+        Set<String> ids = new LinkedHashSet<>();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("_id=")) {
+                    for (String id : URLDecoder.decode(parameter.substring(4), StandardCharsets.UTF_8).split(",")) {
+                        if (!id.isBlank()) {
+                            ids.add(id.trim());
+                        }
+                    }
+                }
+            }
+        }
+
+        //without _id everything of the type would match, that's more than anyone here asks for:
+        JSONArray entries = new JSONArray();
+        for (String id : ids) {
+            String resource = resources.get(resourceType + "/" + id);
+            if (resource != null) {
+                entries.put(new JSONObject().put("resource", new JSONObject(resource)));
+            }
+        }
+        return new JSONObject()
+                .put("resourceType", "Bundle")
+                .put("type", "searchset")
+                .put("total", entries.length())
+                .put("entry", entries)
+                .toString();
+    }
+
+    //null when the resource can be stored as resourceType/id:
+    private static String validate(JSONObject resource, String resourceType, String id) {
+        if (!resourceType.equals(resource.optString("resourceType"))) {
+            return "resourceType " + resource.optString("resourceType") + " doesn't match the url's " + resourceType;
+        }
+        if (!id.equals(resource.optString("id"))) {
+            return "id " + resource.optString("id") + " doesn't match the url's " + id;
+        }
+        return null;
+    }
+
+    //returns whether the resource is new:
+    private boolean store(String resourceType, String id, JSONObject resource) {
+        resourcesWritten.incrementAndGet();
+        return resources.put(resourceType + "/" + id, resource.toString()) == null;
+    }
+
+    private static String outcome(String code, String diagnostics) {
+        JSONObject issue = new JSONObject()
+                .put("severity", "error")
+                .put("code", code)
+                .put("diagnostics", diagnostics);
+        return new JSONObject()
+                .put("resourceType", "OperationOutcome")
+                .put("issue", new JSONArray().put(issue))
+                .toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/fhir+json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/*
+    Reads every http_request_fail_*.log in a directory and returns the distinct missing-resource entries in them.
+    Lines are parsed as they're read and only the parsed entries are kept, so duplicate lines across RefreshIG
+    iterations collapse to one entry without holding the raw text. Logs larger than CHUNK_SIZE are split into
+    newline-aligned byte ranges that are parsed in parallel on the worker pool.
+ */
+public class LogIngester {
+    // Regex to match log filenames
+    private static final Pattern logFilePattern = Pattern.compile("http_request_fail_\\d{14}\\.log");
+
+    protected static final long CHUNK_SIZE = 16L * 1024 * 1024;
+
+    private final ExecutorService workers;
+    private final Set<ParsedLogEntry> entries = ConcurrentHashMap.newKeySet();
+
+    //workers may be null, everything is then read on the calling thread:
+    public LogIngester(ExecutorService workers) {
+        this.workers = workers;
+    }
+
+    public static boolean isLogFile(String fileName) {
+        return logFilePattern.matcher(fileName).matches();
+    }
+
+    public Set<ParsedLogEntry> ingest(String directoryPath) throws IOException {
+        File dir = new File(directoryPath);
+
+        // Validate that the provided path is a directory
+        if (!dir.isDirectory()) {
+            throw new IllegalArgumentException("The provided path is not a directory.");
+        }
+
+        File[] logFiles = Objects.requireNonNull(dir.listFiles((dir1, name) -> logFilePattern.matcher(name).matches()));
+        Arrays.sort(logFiles);
+
+        List<Future<?>> chunks = new ArrayList<>();
+        for (File logFile : logFiles) {
+            long size = logFile.length();
+            if (workers == null || size <= CHUNK_SIZE) {
+                readRange(logFile.toPath(), 0, size);
+                continue;
+            }
+            for (long start = 0; start < size; start += CHUNK_SIZE) {
+                long chunkStart = start;
+                long chunkEnd = Math.min(start + CHUNK_SIZE, size);
+                chunks.add(workers.submit(() -> {
+                    readRange(logFile.toPath(), chunkStart, chunkEnd);
+                    return null;
+                }));
+            }
+        }
+
+        for (Future<?> chunk : chunks) {
+            try {
+                chunk.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading http logs", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to read http logs", e.getCause());
+            }
+        }
+
+        return entries;
+    }
+
+    //parses every line that *starts* in [start, end). A line straddling 'end' belongs to this range, a line
+    //straddling 'start' belongs to the previous one:
+    private void readRange(Path logFile, long start, long end) throws IOException {
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ)) {
+            long position = start;
+            if (start > 0) {
+                //back up one byte: if it's a newline, 'start' is already the beginning of a line
+                channel.position(start - 1);
+                position = start - 1;
+            }
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024);
+
+            if (start > 0) {
+                int b;
+                while ((b = in.read()) != -1) {
+                    position++;
+                    if (b == '\n') {
+                        break;
+                    }
+                }
+            }
+
+            byte[] line = new byte[1024];
+            while (position < end) {
+                int length = 0;
+                int b;
+                while ((b = in.read()) != -1 && b != '\n') {
+                    if (length == line.length) {
+                        line = Arrays.copyOf(line, length * 2);
+                    }
+                    line[length++] = (byte) b;
+                }
+                position += length + (b == '\n' ? 1 : 0);
+
+                if (length > 0 && line[length - 1] == '\r') {
+                    length--;
+                }
+                if (length > 0) {
+                    ParsedLogEntry entry = ParsedLogEntry.parseLogEntry(new String(line, 0, length, StandardCharsets.UTF_8));
+                    if (entry != null) {
+                        entries.add(entry);
+                    }
+                }
+                if (b == -1) {
+                    break;
+                }
+            }
+        }
+    }
+}
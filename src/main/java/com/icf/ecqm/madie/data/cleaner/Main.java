@@ -1,173 +1,890 @@
 package com.icf.ecqm.madie.data.cleaner;
 
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 public class Main {
-    private static int totalFiles = 0;
-    private static int processedFiles = 0;
-    private static String phase = "";
-    private static final StringBuilder log = new StringBuilder();
-    private static final Map<String, ParsedLogEntry> dummyEntryMap = new HashMap<>();
+    private static final RunMetrics metrics = new RunMetrics();
+    private static volatile RunMetrics.Phase phase;
+    private static final AtomicInteger filesWritten = new AtomicInteger();
+    private static final AtomicInteger filesUnchanged = new AtomicInteger();
+    //files the prefilter found nothing to clean in, their ids were recorded without parsing them:
+    private static final Set<Path> prefilteredFiles = ConcurrentHashMap.newKeySet();
+    //files written cleaned from an export zip this run, the walk leaves them alone:
+    private static final Set<Path> extractedFiles = ConcurrentHashMap.newKeySet();
+    //file name -> every missing reference the http logs reported for it:
+    private static final Map<String, List<ParsedLogEntry>> dummyEntryMap = new HashMap<>();
+    //resources known to be on the servers dummy entries go to, null with --no-server-cache:
+    private static ServerCache serverCache;
 
     public static void main(String[] args) throws IOException {
         Path currentDir = Paths.get("").toAbsolutePath();
 
-        boolean logFile = false;
-        for (String arg : args) {
-            if (arg.toLowerCase().contains("-checklogs")) {
-                logFile = true;
-                break;
+        CleanerOptions options;
+        try {
+            options = CleanerOptions.fromArgs(args);
+        } catch (IllegalArgumentException e) {
+            //a typo fails the run, scripts and CI see the exit status:
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        Path templatesDir = options.getTemplatesDir() != null ? currentDir.resolve(options.getTemplatesDir()) : null;
+        if (templatesDir != null) {
+            try {
+                System.out.println("Loaded " + ResourceFactory.loadTemplates(templatesDir) + " dummy resource templates from " + templatesDir);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Failed to load templates: " + e.getMessage());
+                System.exit(1);
+                return;
             }
         }
 
-        if (logFile) {
-            processLogFile(currentDir);
+        Path reportFile = options.getReportFile() != null ? currentDir.resolve(options.getReportFile()) : null;
+        Path metricsFile = options.getMetricsOut() != null ? currentDir.resolve(options.getMetricsOut()) : null;
+
+        List<String> excludes = new ArrayList<>(options.getExcludes());
+        if (options.isDefaultExcludes()) {
+            excludes.addAll(FileWalker.DEFAULT_EXCLUDES);
+        }
+        FileWalker walker = new FileWalker(currentDir, options.getIncludes(), excludes);
+        walker.excludePath(reportFile);
+        walker.excludePath(metricsFile);
+        Path graphFile = options.getGraphOut() != null ? currentDir.resolve(options.getGraphOut()) : null;
+        walker.excludePath(graphFile);
+        Path ndjsonDir = options.getNdjsonOut() != null ? currentDir.resolve(options.getNdjsonOut()) : null;
+        walker.excludePath(ndjsonDir);
+        //templates are never cleaned:
+        walker.excludePath(templatesDir);
+
+        if (options.isServerCache() && (options.isCheckLogs() || options.getMissingServer() != null)) {
+            serverCache = ServerCache.load(currentDir, TimeUnit.MINUTES.toMillis(options.getServerCacheTtlMinutes()));
         }
 
-        List<Path> jsonFiles = Files.walk(currentDir)
-                .filter(Files::isRegularFile)
-                .filter(p -> p.toString().endsWith(".json"))
-                .collect(Collectors.toList());
+        //files cleaned without errors, only those go into the manifest:
+        Set<Path> processedFileSet = ConcurrentHashMap.newKeySet();
+        ReferenceGraph graph = graphFile != null || options.isCreateMissing() ? new ReferenceGraph() : null;
+        ResourceIndex resourceIndex = new ResourceIndex();
+        NdjsonExporter exporter = ndjsonDir != null ? new NdjsonExporter(ndjsonDir) : null;
 
-        totalFiles = jsonFiles.size();
-        Queue<Path> fileQueue = new LinkedList<>(jsonFiles);
-        Set<Path> processedFileSet = new HashSet<>();
-        Map<String, Path> resourceIdToFileMap = new HashMap<>();
+        //with --incremental, the ids each file contributed are kept so they can be written to the manifest, and with
+        //--watch so they can be taken out of the index again when the file changes or is deleted:
+        CleanerManifest manifest = options.isIncremental() ? CleanerManifest.load(currentDir, options.getOutputFingerprint()) : null;
+        Map<Path, List<String[]>> recordedResources = manifest != null || options.isWatch() ? new ConcurrentHashMap<>() : null;
 
-        phase = "Mapping files";
+        //watching starts before the first pass, so nothing that lands while it runs is missed:
+        DirectoryWatcher watcher = options.isWatch() ? new DirectoryWatcher(currentDir, walker, options.getDebounceMillis()) : null;
 
-        for (Path file : jsonFiles) {
+        ExecutorService workers = options.getThreads() > 1 ? Executors.newFixedThreadPool(options.getThreads()) : null;
+        //every rewrite, upload and failure is streamed to the report instead of being held until the end:
+        RunReport report = new RunReport(reportFile);
+        try {
+            if (options.isCheckLogs()) {
+                phase = metrics.startPhase("logs", "Reading http logs", 0);
+                processLogFile(currentDir, workers, report);
+                phase.end();
+            }
+
+            //entries written to --zip-out aren't part of the walk, they still get their dummy entries placed:
+            List<Path> zipEntries = new ArrayList<>();
+            if (!options.getExportZips().isEmpty()) {
+                List<Path> zips = new ArrayList<>();
+                for (String zip : options.getExportZips()) {
+                    zips.add(currentDir.resolve(zip).normalize());
+                }
+                Path zipOut = options.getZipOut() != null ? currentDir.resolve(options.getZipOut()) : null;
+                List<Path> cleaned = cleanExportZips(zips, currentDir.resolve(options.getZipDest()).normalize(), zipOut, processedFileSet,
+                        resourceIndex, options, report, graph, recordedResources);
+                if (zipOut != null) {
+                    zipEntries.addAll(cleaned);
+                }
+            }
+
+            //whichever phase comes first is fed by the walk, so it starts on files before the walk is done. The file
+            //lists are null until then:
+            List<Path> jsonFiles = null;
+            List<Path> filesToClean = null;
+            if (manifest != null) {
+                filesToClean = new ArrayList<>();
+                jsonFiles = skipUnchangedFiles(walker, manifest, workers, resourceIndex, graph, recordedResources, filesToClean);
+            }
+
+            if (options.isSinglePass()) {
+                //rewrites are deterministic, so each file is read once and indexed while it's being rewritten:
+                phase = metrics.startPhase("clean", "Cleaning files", filesToClean != null ? filesToClean.size() : 0);
+                filesToClean = runPhase(filesToClean, walker, workers,
+                        file -> processFile(file, processedFileSet, resourceIndex, options, report, graph, true, recordedResources));
+                phase.end();
+                if (jsonFiles == null) {
+                    jsonFiles = filesToClean;
+                }
+
+                //dummy entries are the only step that needs the whole index, they don't need the files re-read:
+                placeDummyEntries(withZipEntries(jsonFiles, zipEntries), resourceIndex, options, report, exporter);
+            } else {
+                phase = metrics.startPhase("map", "Mapping files", filesToClean != null ? filesToClean.size() : 0);
+                filesToClean = runPhase(filesToClean, walker, workers,
+                        file -> mapFile(file, resourceIndex, options, recordedResources, report, graph));
+                phase.end();
+                if (jsonFiles == null) {
+                    jsonFiles = filesToClean;
+                }
+
+                placeDummyEntries(withZipEntries(jsonFiles, zipEntries), resourceIndex, options, report, exporter);
+
+                phase = metrics.startPhase("clean", "Writing new IDs to references", filesToClean.size());
+                runPhase(filesToClean, walker, workers,
+                        file -> processFile(file, processedFileSet, resourceIndex, options, report, graph, false, recordedResources));
+                phase.end();
+            }
+
+            //every file has been cleaned, so every reference is known:
+            ReferenceGraph.Resolved resolved = graph != null ? graph.resolve(resourceIndex) : null;
+            if (options.isCreateMissing()) {
+                createMissingResources(resolved, currentDir.resolve(options.getMissingDir()), resourceIndex, options, report, exporter);
+            }
+
+            if (exporter != null) {
+                exportNdjson(jsonFiles, exporter, report);
+            }
+
+            if (graphFile != null) {
+                writeGraph(resolved, graphFile, currentDir);
+            }
+
+            if (manifest != null) {
+                //files that failed stay out of the manifest so they're picked up again next run:
+                for (Path file : filesToClean) {
+                    if (processedFileSet.contains(file) && recordedResources.containsKey(file)) {
+                        manifest.update(file, recordedResources.get(file));
+                    }
+                }
+                manifest.retainOnly(jsonFiles);
+                manifest.save();
+            }
+
+            if (watcher != null) {
+                printSummary(report, metricsFile);
+                watch(watcher, currentDir, jsonFiles, processedFileSet, resourceIndex, manifest, recordedResources, graph, graphFile,
+                        workers, options, report);
+                return;
+            }
+        } finally {
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+            if (watcher != null) {
+                watcher.close();
+            }
+            report.close();
+        }
+
+        printSummary(report, metricsFile);
+    }
+
+    private static void printSummary(RunReport report, Path metricsFile) throws IOException {
+        System.out.println("\n\rProcess complete.");
+        System.out.println("\n\rFiles written: " + filesWritten.get() + ", files already clean: " + filesUnchanged.get()
+                + " (" + prefilteredFiles.size() + " skipped without parsing)");
+        report.printSummary(System.out);
+        metrics.printSummary(System.out);
+        if (metricsFile != null) {
+            metrics.write(metricsFile);
+            System.out.println("Metrics written to " + metricsFile);
+        }
+    }
+
+    /*
+        --watch: after the first pass the resource index stays in memory, and every batch of created or changed json
+        files is cleaned the same way as in the first pass. A changed file's old ids are taken out of the index before
+        it's mapped again, and a deleted file is dropped from the index, the graph and the manifest. With -checklogs,
+        new http_request_fail logs have their dummy entries placed as they appear. Runs until the process is stopped.
+
+        The cleaner's own writes show up as changes too. They're not filtered out: a file that was just cleaned has
+        nothing left to clean, so it's only checked (by the prefilter, or rewritten to the same bytes) and not written.
+     */
+    private static void watch(DirectoryWatcher watcher, Path currentDir, List<Path> jsonFiles, Set<Path> processedFileSet,
+                              ResourceIndex resourceIndex, CleanerManifest manifest, Map<Path, List<String[]>> recordedResources,
+                              ReferenceGraph graph, Path graphFile, ExecutorService workers, CleanerOptions options, RunReport report) throws IOException {
+        Set<Path> knownFiles = new TreeSet<>(jsonFiles);
+        System.out.println("\n\rWatching " + currentDir + " for changes, stop with Ctrl+C.");
+        while (true) {
+            DirectoryWatcher.Batch batch;
             try {
-                String content = Files.readString(file);
-                JSONObject jsonObject = new JSONObject(content);
+                batch = watcher.nextBatch();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
 
+            long start = System.nanoTime();
+            int written = filesWritten.get();
+            boolean newLogs = false;
+            List<Path> changedFiles = new ArrayList<>();
+            for (Path file : batch.getChanged()) {
+                if (LogIngester.isLogFile(file.getFileName().toString())) {
+                    newLogs = true;
+                } else {
+                    changedFiles.add(file);
+                    knownFiles.add(file);
+                    //whatever was decided about the old content no longer holds:
+                    prefilteredFiles.remove(file);
+                    processedFileSet.remove(file);
+                    forgetResources(file, resourceIndex, recordedResources);
+                }
+            }
 
-                log.append(FHIRJsonUtil.updateResourceIdMap(jsonObject, resourceIdToFileMap, file, dummyEntryMap));
+            //a deleted directory takes every known file under it along:
+            Set<Path> deletedFiles = new TreeSet<>();
+            for (Path deleted : batch.getDeleted()) {
+                for (Path file : knownFiles) {
+                    if (file.startsWith(deleted)) {
+                        deletedFiles.add(file);
+                    }
+                }
+            }
+            knownFiles.removeAll(deletedFiles);
+            for (Path file : deletedFiles) {
+                prefilteredFiles.remove(file);
+                processedFileSet.remove(file);
+                forgetResources(file, resourceIndex, recordedResources);
+                if (graph != null) {
+                    graph.remove(file);
+                }
+                if (manifest != null) {
+                    manifest.remove(file);
+                }
+            }
 
-                processedFiles++;
-                reportProgress();
-            } catch (Exception e) {
-                System.err.println("Failed to map: " + file);
-                e.printStackTrace();
+            if (!changedFiles.isEmpty()) {
+                if (options.isSinglePass()) {
+                    phase = metrics.startPhase("watch", "Cleaning changed files", changedFiles.size());
+                    runPhase(changedFiles, workers,
+                            file -> processFile(file, processedFileSet, resourceIndex, options, report, graph, true, recordedResources));
+                    phase.end();
+                } else {
+                    phase = metrics.startPhase("watch", "Mapping changed files", changedFiles.size());
+                    runPhase(changedFiles, workers, file -> mapFile(file, resourceIndex, options, recordedResources, report, graph));
+                    phase.end();
+                    phase = metrics.startPhase("watch", "Cleaning changed files", changedFiles.size());
+                    runPhase(changedFiles, workers,
+                            file -> processFile(file, processedFileSet, resourceIndex, options, report, graph, false, recordedResources));
+                    phase.end();
+                }
+            }
+            if (graphFile != null && (!changedFiles.isEmpty() || !deletedFiles.isEmpty())) {
+                writeGraph(graph.resolve(resourceIndex), graphFile, currentDir);
+            }
+
+            if (options.isCheckLogs()) {
+                if (newLogs) {
+                    //a new log can name any file, already placed entries are skipped by the index:
+                    processLogFile(currentDir, workers, report);
+                    placeDummyEntries(new ArrayList<>(knownFiles), resourceIndex, options, report, null);
+                } else if (!changedFiles.isEmpty()) {
+                    placeDummyEntries(changedFiles, resourceIndex, options, report, null);
+                }
+            }
+
+            if (manifest != null) {
+                for (Path file : changedFiles) {
+                    if (processedFileSet.contains(file) && recordedResources.containsKey(file)) {
+                        manifest.update(file, recordedResources.get(file));
+                    }
+                }
+                manifest.save();
+            }
+            report.flush();
+
+            if (!changedFiles.isEmpty() || !deletedFiles.isEmpty() || newLogs) {
+                System.out.println("\n\r" + changedFiles.size() + " changed files cleaned (" + (filesWritten.get() - written) + " written)"
+                        + (deletedFiles.isEmpty() ? "" : ", " + deletedFiles.size() + " deleted files dropped")
+                        + (newLogs ? ", new http logs read" : "") + " in " + (System.nanoTime() - start) / 1_000_000 + " ms.");
             }
         }
-        processedFiles = 0;
+    }
 
-        phase = "Writing new IDs to references";
-        while (!fileQueue.isEmpty()) {
-            Path jsonFile = fileQueue.poll();
-            if (!processedFileSet.contains(jsonFile)) {
-                processFile(jsonFile, fileQueue, processedFileSet, resourceIdToFileMap);
-                processedFiles++;
-                reportProgress();
+    //takes the ids the file contributed out of the index, the file defines whatever it's mapped to next:
+    private static void forgetResources(Path file, ResourceIndex resourceIndex, Map<Path, List<String[]>> recordedResources) {
+        List<String[]> recorded = recordedResources.remove(file);
+        if (recorded != null) {
+            for (String[] resource : recorded) {
+                resourceIndex.remove(resource[1], resource[0], file);
             }
         }
+    }
 
-        if (log.length() > 0) {
-            System.out.println(log);
-            System.out.println("\n\r\n\rProcess complete.");
+    /*
+        Runs the task for every file, on the worker pool when one is given. With files null, the walker finds them and
+        each one is handed to the task as soon as it's found. Returns the files, sorted when they came from the walker.
+     */
+    private static List<Path> runPhase(List<Path> files, FileWalker walker, ExecutorService workers, Consumer<Path> task) throws IOException {
+        if (files != null) {
+            runPhase(files, workers, task);
+            return files;
+        }
 
+        RunMetrics.Phase walk = metrics.startPhase("walk", "Finding files", 0);
+        RunMetrics.Phase current = phase;
+        Queue<Future<?>> futures = new ConcurrentLinkedQueue<>();
+        //the walk lists directories on the same workers, so --threads N stays N threads:
+        List<Path> found = walker.walk(workers, file -> {
+            current.addTotalFiles(1);
+            if (workers == null) {
+                task.accept(file);
+                current.fileDone();
+            } else {
+                futures.add(workers.submit(() -> {
+                    task.accept(file);
+                    current.fileDone();
+                }));
+            }
+        });
+        walk.addFiles(found.size());
+        walk.end();
+
+        awaitAll(futures);
+        return found;
+    }
+
+    private static void runPhase(List<Path> files, ExecutorService workers, Consumer<Path> task) {
+        if (workers == null) {
+            for (Path file : files) {
+                task.accept(file);
+                phase.fileDone();
+            }
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<>(files.size());
+        for (Path file : files) {
+            futures.add(workers.submit(() -> {
+                task.accept(file);
+                phase.fileDone();
+            }));
         }
+        awaitAll(futures);
     }
 
-    private static void processFile(Path jsonFile, Queue<Path> fileQueue, Set<Path> processedFileSet, Map<String, Path> resourceIdToFileMap) {
+    private static void awaitAll(Collection<Future<?>> futures) {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting on " + phase.getLabel(), e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(phase.getLabel() + " failed", e.getCause());
+            }
+        }
+    }
+
+    //checks every file the walker finds against the manifest and restores the ids of unchanged ones. Returns every
+    //file found, the changed ones are added to changedFiles:
+    private static List<Path> skipUnchangedFiles(FileWalker walker, CleanerManifest manifest, ExecutorService workers, ResourceIndex resourceIndex,
+                                                 ReferenceGraph graph, Map<Path, List<String[]>> recordedResources,
+                                                 List<Path> changedFiles) throws IOException {
+        Set<Path> unchanged = ConcurrentHashMap.newKeySet();
+        phase = metrics.startPhase("check", "Checking for changes", 0);
+        List<Path> jsonFiles = runPhase(null, walker, workers, file -> {
+            if (manifest.isUnchanged(file)) {
+                unchanged.add(file);
+            }
+        });
+        phase.end();
+
+        //restored in file order, the same as a run without the manifest would record them:
+        for (Path file : jsonFiles) {
+            if (unchanged.contains(file)) {
+                recordedResources.put(file, manifest.restore(file, resourceIndex));
+                //the manifest only has ids, the references have to be read:
+                if (graph != null) {
+                    recordReferences(file, graph);
+                }
+            } else {
+                changedFiles.add(file);
+            }
+        }
+        System.out.println("\n\r" + (jsonFiles.size() - changedFiles.size()) + " unchanged files skipped, " + changedFiles.size() + " to clean.");
+        return jsonFiles;
+    }
+
+    private static void mapFile(Path file, ResourceIndex resourceIndex, CleanerOptions options, Map<Path, List<String[]>> recordedResources,
+                                RunReport report, ReferenceGraph graph) {
+        if (extractedFiles.contains(file)) {
+            return;
+        }
         try {
-            //parse json content, remove external references forcefully where any part of the string that looks like '"reference": "https://madie.cms.gov/':
-            String content = Files.readString(jsonFile)
-                    .replace("\"reference\": \"https://madie.cms.gov/", "\"reference\": \"")
-                    .replace("\"reference\":\"https://madie.cms.gov/", "\"reference\":\"")
-                    .replace("http://myGoodHealthcare.com/fhir/", "")
-                    .replace("http://GoodHealthcare.com/fhir/", "")
-                    .replace("Practitioner/example", "Practitioner/practitioner-123456");
+            if (options.isPrefilter() && skipCleanFile(file, resourceIndex, recordedResources, graph)) {
+                return;
+            }
+
+            long start = System.nanoTime();
+            String content = Files.readString(file);
+            long read = System.nanoTime();
+            phase.addBytesRead(Files.size(file));
+            metrics.getReadTime().record(read - start);
+
             JSONObject jsonObject = new JSONObject(content);
+            metrics.getParseTime().record(System.nanoTime() - read);
 
-            // Update the 'id' fields in 'resource'
-            FHIRJsonUtil.updateResourceId(jsonObject, resourceIdToFileMap);
+            List<String[]> recorded = FHIRJsonUtil.updateResourceIdMap(jsonObject, resourceIndex, file);
+            if (recordedResources != null) {
+                recordedResources.put(file, recorded);
+            }
+        } catch (Exception e) {
+            System.err.println("\n\rFailed to map: " + file + " (" + e + ")");
+            report.failure("map", file, e);
+        }
+    }
 
-            // Update references entries
-            log.append(FHIRJsonUtil.updateReferences(jsonObject, fileQueue, processedFileSet, resourceIdToFileMap, jsonFile));
+    //true when the raw bytes show there's nothing to clean in the file. Its ids are then recorded without parsing it
+    //and it won't be rewritten:
+    private static boolean skipCleanFile(Path file, ResourceIndex resourceIndex, Map<Path, List<String[]>> recordedResources,
+                                         ReferenceGraph graph) throws IOException {
+        if (FilePrefilter.needsCleaning(file)) {
+            return false;
+        }
+        List<String> references = graph != null ? new ArrayList<>() : null;
+        List<String[]> recorded = FilePrefilter.readResourceIds(file, references);
+        if (recorded == null) {
+            return false;
+        }
+        if (graph != null) {
+            graph.record(file, references);
+        }
+        for (String[] resource : recorded) {
+            FHIRJsonUtil.recordResourceId(resource[0], resource[1], resourceIndex, file);
+        }
+        if (recordedResources != null) {
+            recordedResources.put(file, recorded);
+        }
+        phase.addBytesRead(Files.size(file));
+        prefilteredFiles.add(file);
+        return true;
+    }
 
-            // Save the modified jsonObject ref
-            Files.writeString(jsonFile, jsonObject.toString(4));
+    //dummy entries are collected in file order once every id is known, so the result matches a single threaded run,
+    //then placed on the server as transaction bundles. With an exporter they go into the ndjson as well:
+    private static void placeDummyEntries(List<Path> jsonFiles, ResourceIndex resourceIndex, CleanerOptions options, RunReport report,
+                                          NdjsonExporter exporter) {
+        if (dummyEntryMap.isEmpty()) {
+            return;
+        }
+        List<DummyResource> dummyResources = new ArrayList<>();
+        for (Path file : jsonFiles) {
+            dummyResources.addAll(FHIRJsonUtil.createDummyEntries(file, dummyEntryMap, resourceIndex));
+        }
+        placeDummyResources(dummyResources, options, report, exporter);
+    }
 
-            processedFileSet.add(jsonFile);
-        } catch (Exception e) {
-            System.err.println("Failed to process file: " + jsonFile);
-            e.printStackTrace();
+    private static void placeDummyResources(List<DummyResource> dummyResources, CleanerOptions options, RunReport report, NdjsonExporter exporter) {
+        if (dummyResources.isEmpty()) {
+            return;
+        }
+        //the ndjson is for loading the IG elsewhere, the server the http logs came from still needs them:
+        if (exporter != null) {
+            exporter.addDummyResources(dummyResources);
+            System.out.println("\n\r" + dummyResources.size() + " dummy entries will also be written to " + exporter.getOutputDir() + ".");
+        }
+
+        RunMetrics.Phase previousPhase = phase;
+        phase = metrics.startPhase("upload", "Placing dummy entries", dummyResources.size());
+        HttpClient httpClient = TransactionUploader.newHttpClient();
+        List<DummyResource> toUpload = dummyResources;
+        if (serverCache != null) {
+            toUpload = serverCache.refresh(httpClient, dummyResources);
+            for (DummyResource dummyResource : dummyResources) {
+                if (serverCache.isKnown(dummyResource)) {
+                    report.dummyCached(dummyResource);
+                }
+            }
+            System.out.println("\n\r" + (dummyResources.size() - toUpload.size()) + " of " + dummyResources.size()
+                    + " dummy entries are already on the server (" + serverCache.getSearches() + " searches, "
+                    + serverCache.getFailedSearches() + " failed).");
+        }
+
+        if (!toUpload.isEmpty()) {
+            if (options.isPerResourceUpload()) {
+                System.out.println("\n\rPlacing " + toUpload.size() + " dummy entries, " + options.getMaxInFlight() + " at a time.");
+            } else {
+                System.out.println("\n\rPlacing " + toUpload.size() + " dummy entries in batches of " + options.getBatchSize() + ".");
+            }
+
+            List<UploadResult> results = newUploader(options, httpClient).upload(toUpload);
+            for (UploadResult result : results) {
+                report.dummyUpload(result);
+                metrics.getHttpLatency().recordMillis(result.getLatencyMillis());
+                if (serverCache != null && result.isSuccess()) {
+                    serverCache.markExists(result.getDummyResource());
+                }
+            }
         }
+
+        if (serverCache != null) {
+            try {
+                serverCache.save();
+            } catch (IOException e) {
+                //the next run just looks everything up again:
+                System.err.println("Failed to save the server cache: " + e.getMessage());
+            }
+        }
+        //results only come back once everything is placed, so there's no progress to show along the way:
+        phase.addFiles(dummyResources.size());
+        phase.end();
+        phase = previousPhase;
     }
 
-    private static void processLogFile(Path currentDir) {
-        //fist, check for latest http log, attempt to add dummy entries to files claiming they are missing:
+    //transaction bundles unless --per-resource-upload, UploadLoadTest places its resources through here too:
+    protected static ResourceUploader newUploader(CleanerOptions options, HttpClient httpClient) {
+        if (options.isPerResourceUpload()) {
+            return new AsyncUploader(httpClient, options.getMaxInFlight(), options.getMaxRetries());
+        }
+        return new TransactionUploader(httpClient, options.getBatchSize());
+    }
+
+    private static void processFile(Path jsonFile, Set<Path> processedFileSet, ResourceIndex resourceIndex, CleanerOptions options,
+                                    RunReport report, ReferenceGraph graph, boolean mapResourceIds, Map<Path, List<String[]>> recordedResources) {
+        if (extractedFiles.contains(jsonFile)) {
+            return;
+        }
+        Path tempFile = null;
         try {
-            Set<String> allLogs = readLogFilesIntoSet(currentDir.toString());
-            String url = "";
-            if (!allLogs.isEmpty()) {
-                System.out.println("Reading all http logs to attempt to patch missing resources.");
+            //already found clean while mapping, or found clean now when mapping as we go:
+            if (prefilteredFiles.contains(jsonFile)
+                    || (mapResourceIds && options.isPrefilter() && skipCleanFile(jsonFile, resourceIndex, recordedResources, graph))) {
+                filesUnchanged.incrementAndGet();
+                processedFileSet.add(jsonFile);
+                return;
+            }
 
-                for (String line : allLogs) {
-                    ParsedLogEntry entry = ParsedLogEntry.parseLogEntry(line);
-                    if (entry != null) {
-                        url = entry.getUrl();
-                        if (!dummyEntryMap.containsKey(entry.getFileName())) {
-                            dummyEntryMap.put(entry.getFileName(), entry);
+            //stream the cleaned json into a sibling file, then swap it in only if something changed:
+            tempFile = jsonFile.resolveSibling("." + jsonFile.getFileName() + "." + UUID.randomUUID() + ".tmp");
+            long start = System.nanoTime();
+            try (Reader in = Files.newBufferedReader(jsonFile);
+                 Writer out = Files.newBufferedWriter(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                FHIRStreamRewriter rewriter = new FHIRStreamRewriter(jsonFile, resourceIndex, options.getReferenceMatcher(), report,
+                        graph, mapResourceIds);
+                rewriter.rewrite(in, out);
+                report.fileRewritten(jsonFile, rewriter.getIdRewrites(), rewriter.getReferenceRewrites());
+                if (mapResourceIds && recordedResources != null) {
+                    recordedResources.put(jsonFile, rewriter.getRecordedResources());
+                }
+            }
+            long rewritten = System.nanoTime();
+            metrics.getRewriteTime().record(rewritten - start);
+            phase.addBytesRead(Files.size(jsonFile));
+
+            if (sameContent(tempFile, jsonFile)) {
+                Files.delete(tempFile);
+                filesUnchanged.incrementAndGet();
+            } else {
+                long size = Files.size(tempFile);
+                moveIntoPlace(tempFile, jsonFile);
+                phase.addBytesWritten(size);
+                filesWritten.incrementAndGet();
+            }
+            metrics.getWriteTime().record(System.nanoTime() - rewritten);
+
+            processedFileSet.add(jsonFile);
+        } catch (Exception e) {
+            System.err.println("\n\rFailed to process file: " + jsonFile + " (" + e + ")");
+            report.failure("clean", jsonFile, e);
+            deleteQuietly(tempFile);
+        }
+    }
+
+    /*
+        Cleans the json entries of MADiE export zips straight out of the archives, in one sequential pass: each entry
+        is rewritten and has its ids recorded as it's read, then it's written under zipDest (keeping its path in the
+        zip), or into zipOut when that's given. Nothing is extracted first. Returns the files written, or with zipOut
+        the entry paths.
+     */
+    private static List<Path> cleanExportZips(List<Path> zips, Path zipDest, Path zipOut, Set<Path> processedFileSet, ResourceIndex resourceIndex,
+                                              CleanerOptions options, RunReport report, ReferenceGraph graph,
+                                              Map<Path, List<String[]>> recordedResources) throws IOException {
+        phase = metrics.startPhase("unzip", "Cleaning export zips", 0);
+        List<Path> cleaned = new ArrayList<>();
+        try (ZipOutputStream out = zipOut != null ? new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(zipOut))) : null) {
+            for (Path zip : zips) {
+                try (ZipInputStream in = new ZipInputStream(new BufferedInputStream(Files.newInputStream(zip)))) {
+                    ZipEntry entry;
+                    while ((entry = in.getNextEntry()) != null) {
+                        if (entry.isDirectory() || !entry.getName().endsWith(".json")) {
+                            continue;
                         }
+                        phase.addTotalFiles(1);
+                        Path relative = Paths.get(entry.getName()).normalize();
+                        Path file = zipOut != null ? relative : zipDest.resolve(relative);
+                        try {
+                            //a "../" entry would land outside the IG:
+                            if (relative.isAbsolute() || relative.startsWith("..")) {
+                                throw new IOException("Entry " + entry.getName() + " of " + zip + " points outside of the export");
+                            }
+                            byte[] cleanedJson = cleanZipEntry(in, file, resourceIndex, options, report, graph, recordedResources);
+                            if (out != null) {
+                                out.putNextEntry(new ZipEntry(entry.getName()));
+                                out.write(cleanedJson);
+                                out.closeEntry();
+                            } else {
+                                writeExtractedFile(file, cleanedJson);
+                                extractedFiles.add(file);
+                                processedFileSet.add(file);
+                            }
+                            phase.addBytesWritten(cleanedJson.length);
+                            filesWritten.incrementAndGet();
+                            cleaned.add(file);
+                        } catch (Exception e) {
+                            System.err.println("\n\rFailed to clean zip entry: " + entry.getName() + " of " + zip + " (" + e + ")");
+                            report.failure("unzip", file, e);
+                        }
+                        phase.fileDone();
                     }
                 }
-            } else {
-                System.out.println("No log files found.");
             }
-            if (!url.isEmpty()) {
-                System.out.println("Entries for " + url + " processed with " + dummyEntryMap.size() + " missing resources identified.");
+        }
+        phase.end();
+        return cleaned;
+    }
+
+    private static byte[] cleanZipEntry(ZipInputStream in, Path file, ResourceIndex resourceIndex, CleanerOptions options, RunReport report,
+                                        ReferenceGraph graph, Map<Path, List<String[]>> recordedResources) throws IOException {
+        long start = System.nanoTime();
+        byte[] json = in.readAllBytes();
+        long read = System.nanoTime();
+        metrics.getReadTime().record(read - start);
+        phase.addBytesRead(json.length);
+
+        StringWriter cleaned = new StringWriter(json.length + json.length / 4);
+        FHIRStreamRewriter rewriter = new FHIRStreamRewriter(file, resourceIndex, options.getReferenceMatcher(), report, graph, true);
+        rewriter.rewrite(new InputStreamReader(new ByteArrayInputStream(json), StandardCharsets.UTF_8), cleaned);
+        report.fileRewritten(file, rewriter.getIdRewrites(), rewriter.getReferenceRewrites());
+        metrics.getRewriteTime().record(System.nanoTime() - read);
+        if (recordedResources != null) {
+            recordedResources.put(file, rewriter.getRecordedResources());
+        }
+        return cleaned.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void writeExtractedFile(Path file, byte[] json) throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(file.getParent());
+        Path tempFile = file.resolveSibling("." + file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            Files.write(tempFile, json, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            moveIntoPlace(tempFile, file);
+        } finally {
+            deleteQuietly(tempFile);
+        }
+        metrics.getWriteTime().record(System.nanoTime() - start);
+    }
+
+    /*
+        --create-missing: every reference nothing in the IG defines gets a placeholder from the ResourceFactory templates
+        now, instead of after RefreshIG failed to upload it and logged it. The placeholders are written to missingDir as
+        <resourceType>-<id>.json (<id>.json when the id already starts with its type, as cleaned numeric ids do), or
+        placed on --missing-server the way logged dummy entries are. With --ndjson-out they go into the ndjson too.
+     */
+    private static void createMissingResources(ReferenceGraph.Resolved resolved, Path missingDir, ResourceIndex resourceIndex, CleanerOptions options,
+                                               RunReport report, NdjsonExporter exporter) throws IOException {
+        String serverUrl = options.getMissingServer() != null ? options.getMissingServer() : "";
+        //the same shape the http logs are read into, keyed by file name:
+        Map<String, List<ParsedLogEntry>> missingEntries = new HashMap<>();
+        int references = 0;
+        for (Map.Entry<Path, Set<String>> entry : resolved.getMissing().entrySet()) {
+            String fileName = entry.getKey().getFileName().toString();
+            for (String reference : entry.getValue()) {
+                String[] parts = ReferenceGraph.parseReference(reference);
+                missingEntries.computeIfAbsent(fileName, k -> new ArrayList<>()).add(new ParsedLogEntry(parts[0], parts[1], fileName, serverUrl));
+                references++;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+
+        //in file order, so a placeholder is made the same way every run:
+        List<DummyResource> dummyResources = new ArrayList<>();
+        for (Path file : resolved.getMissing().keySet()) {
+            dummyResources.addAll(FHIRJsonUtil.createDummyEntries(file, missingEntries, resourceIndex));
+            //several files can share a name, the first one covers them all:
+            missingEntries.remove(file.getFileName().toString());
+        }
+        System.out.println("\n\r" + references + " references to missing resources found, " + dummyResources.size()
+                + " placeholders to create (types without a template are left out).");
+
+        if (options.getMissingServer() != null) {
+            placeDummyResources(dummyResources, options, report, exporter);
+            return;
+        }
+        Files.createDirectories(missingDir);
+        int written = 0;
+        for (DummyResource dummyResource : dummyResources) {
+            String id = dummyResource.getResourceId();
+            String prefix = dummyResource.getResourceType() + "-";
+            Path file = missingDir.resolve((id.startsWith(prefix) ? id : prefix + id) + ".json");
+            if (Files.exists(file)) {
+                continue;
+            }
+            writePlaceholder(file, dummyResource.getResource());
+            resourceIndex.put(dummyResource.getResourceType(), dummyResource.getResourceId(), file);
+            written++;
+        }
+        if (exporter != null) {
+            exporter.addDummyResources(dummyResources);
+        }
+        System.out.println(written + " placeholders written to " + missingDir);
     }
 
-    private static Set<String> readLogFilesIntoSet(String directoryPath) throws IOException {
-        File dir = new File(directoryPath);
+    //formatted the way FHIRStreamRewriter writes, key order kept, so cleaning the IG again leaves it as it is:
+    private static void writePlaceholder(Path file, String resource) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file, StandardOpenOption.CREATE_NEW)) {
+            JsonWriter json = new JsonWriter(writer);
+            json.setIndent("    ");
+            new GsonBuilder().disableHtmlEscaping().create().toJson(JsonParser.parseString(resource), json);
+            json.flush();
+        }
+    }
 
-        // Validate that the provided path is a directory
-        if (!dir.isDirectory()) {
-            throw new IllegalArgumentException("The provided path is not a directory.");
+    //every cleaned file, in file order so the first file defining a resource is the one exported:
+    private static void exportNdjson(List<Path> jsonFiles, NdjsonExporter exporter, RunReport report) throws IOException {
+        phase = metrics.startPhase("ndjson", "Writing ndjson", jsonFiles.size());
+        for (Path file : jsonFiles) {
+            try {
+                phase.addBytesRead(exporter.export(file));
+            } catch (Exception e) {
+                System.err.println("\n\rFailed to export: " + file + " (" + e + ")");
+                report.failure("ndjson", file, e);
+            }
+            phase.fileDone();
         }
+        exporter.close();
+        phase.end();
+        exporter.printSummary(System.out);
+    }
 
-        // Regex to match log filenames
-        Pattern logFilePattern = Pattern.compile("http_request_fail_\\d{14}\\.log");
+    private static List<Path> withZipEntries(List<Path> jsonFiles, List<Path> zipEntries) {
+        if (zipEntries.isEmpty()) {
+            return jsonFiles;
+        }
+        List<Path> files = new ArrayList<>(jsonFiles);
+        files.addAll(zipEntries);
+        return files;
+    }
 
-        // Set to store unique lines
-        Set<String> uniqueLines = new HashSet<>();
+    //references of a file that isn't cleaned this run, read without parsing it into json:
+    private static void recordReferences(Path file, ReferenceGraph graph) {
+        try {
+            List<String> references = new ArrayList<>();
+            if (FilePrefilter.readResourceIds(file, references) != null) {
+                graph.record(file, references);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("\n\rFailed to read references: " + file + " (" + e + ")");
+        }
+    }
 
-        // Process each matching file in the directory
-        File[] logFiles = Objects.requireNonNull(dir.listFiles((dir1, name) -> logFilePattern.matcher(name).matches()));
+    private static void writeGraph(ReferenceGraph.Resolved resolved, Path graphFile, Path currentDir) throws IOException {
+        resolved.printSummary(System.out);
+        resolved.write(graphFile, currentDir);
+        System.out.println("Reference graph written to " + graphFile);
+    }
 
-        for (File logFile : logFiles) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    uniqueLines.add(line);
+    private static boolean sameContent(Path first, Path second) throws IOException {
+        if (Files.size(first) != Files.size(second)) {
+            return false;
+        }
+        try (InputStream a = Files.newInputStream(first);
+             InputStream b = Files.newInputStream(second)) {
+            byte[] bufferA = new byte[64 * 1024];
+            byte[] bufferB = new byte[64 * 1024];
+            int read;
+            while ((read = a.readNBytes(bufferA, 0, bufferA.length)) > 0) {
+                if (b.readNBytes(bufferB, 0, read) != read || !Arrays.equals(bufferA, 0, read, bufferB, 0, read)) {
+                    return false;
                 }
             }
+            return true;
         }
+    }
 
-        return uniqueLines;
+    //readers never see a half written file, and a crash leaves either the old or the new file in place:
+    private static void moveIntoPlace(Path tempFile, Path target) throws IOException {
+        try {
+            Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+        }
     }
 
-    private static void reportProgress() {
-        double percentage = (double) processedFiles / totalFiles * 100;
-        System.out.print("\r" + phase + ": " + String.format("%.2f%%", percentage) + " processed.");
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("Failed to delete temp file: " + file);
+        }
+    }
+
+    private static void processLogFile(Path currentDir, ExecutorService workers, RunReport report) {
+        //fist, check for latest http log, attempt to add dummy entries to files claiming they are missing:
+        try {
+            //read again from scratch in --watch when a new log appears:
+            dummyEntryMap.clear();
+            Set<ParsedLogEntry> allEntries = new LogIngester(workers).ingest(currentDir.toString());
+            String url = "";
+            if (!allEntries.isEmpty()) {
+                System.out.println("Reading all http logs to attempt to patch missing resources.");
+
+                //keep every missing reference per file so they're all placed in one go:
+                for (ParsedLogEntry entry : allEntries) {
+                    url = entry.getUrl();
+                    dummyEntryMap.computeIfAbsent(entry.getFileName(), k -> new ArrayList<>()).add(entry);
+                }
+                //log order isn't meaningful, sort so repeated runs place resources in the same order:
+                for (List<ParsedLogEntry> entries : dummyEntryMap.values()) {
+                    entries.sort(Comparator.comparing(ParsedLogEntry::getResourceType)
+                            .thenComparing(ParsedLogEntry::getResourceId)
+                            .thenComparing(ParsedLogEntry::getUrl));
+                }
+            } else {
+                System.out.println("No log files found.");
+            }
+            if (!url.isEmpty()) {
+                System.out.println("Entries for " + url + " processed with " + allEntries.size() + " missing resources identified across "
+                        + dummyEntryMap.size() + " files.");
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read http logs (" + e + ")");
+            report.failure("logs", null, e);
+        }
     }
 
 }
\ No newline at end of file
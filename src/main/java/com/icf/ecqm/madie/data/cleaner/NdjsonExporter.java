@@ -0,0 +1,137 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/*
+    Writes the cleaned IG as FHIR Bulk Data ndjson, one <resourceType>.ndjson file per type with one resource per
+    line, so the whole test data set can be loaded with a single $import instead of an upload per bundle.
+
+    Resources are split out of files the same way updateResourceIdMap finds them: every entry's resource in a
+    bundle, or the root when it has no entries. A (resourceType, id) pair is only written once, the first file
+    in file order wins. Dummy entries are held until close() and written after the IG's own resources, so a
+    resource the IG defines is never shadowed by a placeholder.
+ */
+public class NdjsonExporter implements Closeable {
+    private final Path outputDir;
+    private final Map<String, Writer> writers = new TreeMap<>();
+    private final Map<String, Integer> counts = new TreeMap<>();
+    private final Set<String> written = new HashSet<>();
+    private final List<DummyResource> dummyResources = new ArrayList<>();
+    private int duplicates = 0;
+    private int skipped = 0;
+
+    public NdjsonExporter(Path outputDir) throws IOException {
+        this.outputDir = outputDir;
+        Files.createDirectories(outputDir);
+    }
+
+    public Path getOutputDir() {
+        return outputDir;
+    }
+
+    public void addDummyResources(List<DummyResource> resources) {
+        dummyResources.addAll(resources);
+    }
+
+    //returns the number of bytes read:
+    public long export(Path file) throws IOException {
+        JsonElement root;
+        try (Reader in = Files.newBufferedReader(file)) {
+            root = JsonParser.parseReader(in);
+        }
+        if (!root.isJsonObject()) {
+            skipped++;
+            return Files.size(file);
+        }
+        JsonObject json = root.getAsJsonObject();
+        if (json.has("entry")) {
+            JsonElement entries = json.get("entry");
+            if (entries.isJsonArray()) {
+                for (JsonElement entry : (JsonArray) entries) {
+                    if (entry.isJsonObject() && entry.getAsJsonObject().has("resource")) {
+                        write(entry.getAsJsonObject().get("resource"));
+                    }
+                }
+            }
+        } else if (json.has("id")) {
+            write(json);
+        }
+        return Files.size(file);
+    }
+
+    private void write(JsonElement element) throws IOException {
+        if (!element.isJsonObject()) {
+            skipped++;
+            return;
+        }
+        JsonObject resource = element.getAsJsonObject();
+        String resourceType = stringValue(resource, "resourceType");
+        String id = stringValue(resource, "id");
+        if (resourceType == null || id == null) {
+            skipped++;
+            return;
+        }
+        write(resourceType, id, resource.toString());
+    }
+
+    private void write(String resourceType, String id, String json) throws IOException {
+        //resource types are plain letters, anything else can't be a file name of its own. Checked before the pair is
+        //taken, so a skipped resource doesn't count as written:
+        if (!resourceType.matches("[A-Za-z]+")) {
+            skipped++;
+            return;
+        }
+        if (!written.add(resourceType + "/" + id)) {
+            duplicates++;
+            return;
+        }
+        Writer writer = writers.get(resourceType);
+        if (writer == null) {
+            writer = Files.newBufferedWriter(outputDir.resolve(resourceType + ".ndjson"));
+            writers.put(resourceType, writer);
+        }
+        writer.write(json);
+        writer.write('\n');
+        counts.merge(resourceType, 1, Integer::sum);
+    }
+
+    private static String stringValue(JsonObject object, String name) {
+        JsonElement value = object.get(name);
+        return value != null && value.isJsonPrimitive() && value.getAsJsonPrimitive().isString() ? value.getAsString() : null;
+    }
+
+    public void printSummary(PrintStream out) {
+        int resources = 0;
+        for (int count : counts.values()) {
+            resources += count;
+        }
+        out.println("\n\rNdjson: " + resources + " resources of " + counts.size() + " types written to " + outputDir
+                + " (" + duplicates + " duplicates dropped, " + skipped + " without a resourceType or id skipped)");
+    }
+
+    //dummy entries are rendered as single line json already:
+    @Override
+    public void close() throws IOException {
+        try {
+            for (DummyResource dummyResource : dummyResources) {
+                write(dummyResource.getResourceType(), dummyResource.getResourceId(), dummyResource.getResource());
+            }
+        } finally {
+            for (Writer writer : writers.values()) {
+                writer.close();
+            }
+        }
+    }
+}
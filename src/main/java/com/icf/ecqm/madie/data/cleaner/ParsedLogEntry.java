@@ -1,5 +1,6 @@
 package com.icf.ecqm.madie.data.cleaner;
 
+import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -32,28 +33,39 @@ public class ParsedLogEntry {
         return resourceId;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ParsedLogEntry)) return false;
+        ParsedLogEntry that = (ParsedLogEntry) o;
+        return fileName.equals(that.fileName) && resourceType.equals(that.resourceType)
+                && resourceId.equals(that.resourceId) && url.equals(that.url);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(fileName, resourceType, resourceId, url);
+    }
+
+    // Compiled once, parseLogEntry runs for every line of every http log
+    private static final Pattern filenamePattern = Pattern.compile("([^\\s:]+\\.json)");
+    private static final Pattern resourceFullPattern = Pattern.compile("Resource\\s+(\\w+/[\\w-]+)");
+    private static final Pattern urlPattern = Pattern.compile("http[s]?://[^\\s]+");
+
     public static ParsedLogEntry parseLogEntry(String logLine) {
         if (!logLine.contains("not found, specified in path")) {
             return null;
         }
 
-        // Define the regular expressions
-        String filenameRegex = "([^\\s:]+\\.json)";
-        String resourceFullRegex = "Resource\\s+(\\w+/[\\w-]+)";
-        String urlRegex = "http[s]?://[^\\s]+";
-
         // Extract filename
-        Pattern filenamePattern = Pattern.compile(filenameRegex);
         Matcher filenameMatcher = filenamePattern.matcher(logLine);
         String filename = filenameMatcher.find() ? filenameMatcher.group(1) : null;
 
         // Extract full resource string
-        Pattern resourceFullPattern = Pattern.compile(resourceFullRegex);
         Matcher resourceFullMatcher = resourceFullPattern.matcher(logLine);
         String resourceFull = resourceFullMatcher.find() ? resourceFullMatcher.group(1) : null;
 
         // Extract URL
-        Pattern urlPattern = Pattern.compile(urlRegex);
         Matcher urlMatcher = urlPattern.matcher(logLine);
         String url = urlMatcher.find() ? urlMatcher.group() : null;
         // Clean the URL to remove any trailing colons
@@ -65,12 +77,10 @@ public class ParsedLogEntry {
             return null;
         }
 
-        String resourceType = resourceFull.split("/")[0];
-        String resourceId = resourceFull.split("/")[1];
-
-        if (resourceType == null || resourceId == null) {
-            return null;
-        }
+        // the pattern guarantees exactly one '/'
+        int slash = resourceFull.indexOf('/');
+        String resourceType = resourceFull.substring(0, slash);
+        String resourceId = resourceFull.substring(slash + 1);
 
         return new ParsedLogEntry(resourceType, resourceId, filename, url);
     }
@@ -0,0 +1,225 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    Which files reference which. Each file's references are recorded as it's cleaned (or read by the prefilter),
+    in the form they're written out. Once every resource id is known, resolve() turns them into file to file edges
+    through the ResourceIndex, the references nothing in the IG defines, and the connected components: groups of
+    files that only reference each other, e.g. a measure's test cases and the shared resources they point at.
+
+    The graph is an export and a summary (--graph-out, and the missing references for --create-missing). Nothing is
+    scheduled by it: it's built from what cleaning records, and cleaning needs no order, a reference is rewritten
+    from its own text whatever file defines it.
+
+    Recording is safe from worker threads. Recording a file again replaces what it had, and a deleted file is
+    removed (--watch).
+ */
+public class ReferenceGraph {
+    //file -> Type/id references in it, as written:
+    private final Map<Path, List<String>> references = new ConcurrentHashMap<>();
+
+    public void record(Path file, List<String> fileReferences) {
+        references.put(file, fileReferences);
+    }
+
+    public void remove(Path file) {
+        references.remove(file);
+    }
+
+    public int size() {
+        return references.size();
+    }
+
+    public Resolved resolve(ResourceIndex resourceIndex) {
+        return new Resolved(new TreeMap<>(references), resourceIndex);
+    }
+
+    //the Type and id of a relative reference, or null for anything else (absolute urls, contained "#id", urn:uuid):
+    protected static String[] parseReference(String reference) {
+        String[] parts = reference.split("/");
+        if (parts.length != 2 || parts[0].isEmpty() || parts[1].isEmpty() || reference.startsWith("#")) {
+            return null;
+        }
+        return parts;
+    }
+
+    public static class Resolved {
+        private final List<Path> files;
+        //file -> referenced file -> the references from one to the other:
+        private final Map<Path, Map<Path, Set<String>>> edges = new TreeMap<>();
+        //file -> references nothing in the IG defines:
+        private final Map<Path, Set<String>> missing = new TreeMap<>();
+        private final List<List<Path>> components = new ArrayList<>();
+        private int edgeCount = 0;
+        private int missingCount = 0;
+
+        private Resolved(SortedMap<Path, List<String>> references, ResourceIndex resourceIndex) {
+            files = new ArrayList<>(references.keySet());
+            Map<Path, Integer> indexes = new HashMap<>();
+            for (int i = 0; i < files.size(); i++) {
+                indexes.put(files.get(i), i);
+            }
+
+            int[] parents = new int[files.size()];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = i;
+            }
+
+            for (Map.Entry<Path, List<String>> entry : references.entrySet()) {
+                Path file = entry.getKey();
+                for (String reference : entry.getValue()) {
+                    String[] parts = parseReference(reference);
+                    if (parts == null) {
+                        continue;
+                    }
+                    Path target = resourceIndex.get(parts[0], parts[1]);
+                    if (target == null) {
+                        if (missing.computeIfAbsent(file, k -> new TreeSet<>()).add(reference)) {
+                            missingCount++;
+                        }
+                    } else if (!target.equals(file)) {
+                        if (edges.computeIfAbsent(file, k -> new TreeMap<>()).computeIfAbsent(target, k -> new TreeSet<>()).add(reference)) {
+                            edgeCount++;
+                        }
+                        Integer targetIndex = indexes.get(target);
+                        //targets can be files that were never cleaned this run, those aren't nodes of their own:
+                        if (targetIndex != null) {
+                            union(parents, indexes.get(file), targetIndex);
+                        }
+                    }
+                }
+            }
+
+            Map<Integer, List<Path>> byRoot = new TreeMap<>();
+            for (int i = 0; i < files.size(); i++) {
+                byRoot.computeIfAbsent(find(parents, i), k -> new ArrayList<>()).add(files.get(i));
+            }
+            components.addAll(byRoot.values());
+            //largest first, ties in file order:
+            components.sort(Comparator.<List<Path>>comparingInt(List::size).reversed().thenComparing(c -> c.get(0)));
+        }
+
+        private static int find(int[] parents, int i) {
+            while (parents[i] != i) {
+                parents[i] = parents[parents[i]];
+                i = parents[i];
+            }
+            return i;
+        }
+
+        private static void union(int[] parents, int a, int b) {
+            int rootA = find(parents, a);
+            int rootB = find(parents, b);
+            if (rootA != rootB) {
+                //the lower index stays the root, so component order doesn't depend on the order edges were found:
+                parents[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+            }
+        }
+
+        public List<List<Path>> getComponents() {
+            return components;
+        }
+
+        //file -> references nothing in the IG defines:
+        public Map<Path, Set<String>> getMissing() {
+            return missing;
+        }
+
+        public void printSummary(PrintStream out) {
+            int largest = components.isEmpty() ? 0 : components.get(0).size();
+            out.println("\n\rReference graph: " + files.size() + " files, " + edgeCount + " references between files, "
+                    + components.size() + " independent groups (largest " + largest + " files), "
+                    + missingCount + " references to resources not in the IG");
+        }
+
+        //Graphviz for files ending in .dot, json otherwise. Paths are written relative to baseDir:
+        public void write(Path file, Path baseDir) throws IOException {
+            try (Writer writer = Files.newBufferedWriter(file)) {
+                if (file.getFileName().toString().endsWith(".dot")) {
+                    writeDot(writer, baseDir);
+                } else {
+                    writeJson(writer, baseDir);
+                }
+            }
+        }
+
+        private void writeJson(Writer writer, Path baseDir) throws IOException {
+            JsonWriter json = new JsonWriter(writer);
+            json.setIndent("    ");
+            json.beginObject();
+            json.name("components").beginArray();
+            for (List<Path> component : components) {
+                json.beginArray();
+                for (Path file : component) {
+                    json.value(relative(baseDir, file));
+                }
+                json.endArray();
+            }
+            json.endArray();
+
+            json.name("edges").beginArray();
+            for (Map.Entry<Path, Map<Path, Set<String>>> from : edges.entrySet()) {
+                for (Map.Entry<Path, Set<String>> to : from.getValue().entrySet()) {
+                    json.beginObject()
+                            .name("from").value(relative(baseDir, from.getKey()))
+                            .name("to").value(relative(baseDir, to.getKey()));
+                    json.name("references").beginArray();
+                    for (String reference : to.getValue()) {
+                        json.value(reference);
+                    }
+                    json.endArray();
+                    json.endObject();
+                }
+            }
+            json.endArray();
+
+            json.name("missing").beginArray();
+            for (Map.Entry<Path, Set<String>> entry : missing.entrySet()) {
+                for (String reference : entry.getValue()) {
+                    json.beginObject()
+                            .name("file").value(relative(baseDir, entry.getKey()))
+                            .name("reference").value(reference)
+                            .endObject();
+                }
+            }
+            json.endArray();
+            json.endObject();
+            json.flush();
+        }
+
+        private void writeDot(Writer writer, Path baseDir) throws IOException {
+            writer.write("digraph references {\n");
+            writer.write("    node [shape=box];\n");
+            for (Map.Entry<Path, Map<Path, Set<String>>> from : edges.entrySet()) {
+                for (Map.Entry<Path, Set<String>> to : from.getValue().entrySet()) {
+                    writer.write("    " + quote(relative(baseDir, from.getKey())) + " -> " + quote(relative(baseDir, to.getKey()))
+                            + " [label=" + quote(String.valueOf(to.getValue().size())) + "];\n");
+                }
+            }
+            for (Map.Entry<Path, Set<String>> entry : missing.entrySet()) {
+                for (String reference : entry.getValue()) {
+                    writer.write("    " + quote(relative(baseDir, entry.getKey())) + " -> " + quote(reference) + " [style=dashed];\n");
+                    writer.write("    " + quote(reference) + " [shape=ellipse, color=red];\n");
+                }
+            }
+            writer.write("}\n");
+        }
+
+        private static String relative(Path baseDir, Path file) {
+            return file.startsWith(baseDir) ? baseDir.relativize(file).toString().replace('\\', '/') : file.toString();
+        }
+
+        private static String quote(String value) {
+            return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        }
+    }
+}
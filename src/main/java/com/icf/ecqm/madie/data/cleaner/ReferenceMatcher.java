@@ -0,0 +1,88 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/*
+    Decides which "reference" fields get rewritten, by the dotted path of the object holding the reference,
+    relative to its resource. Arrays don't add a segment:
+
+        "subject": { "reference": ... }                              -> subject
+        "diagnosis": [ { "condition": { "reference": ... } } ]        -> diagnosis.condition
+        "contained": [ { "performer": [ { "actor": {...} } ] } ]      -> contained.performer.actor
+
+    Patterns use the same shape, with '*' for exactly one segment and '**' for any number of segments
+    (including none). A path is rewritten when it matches an include pattern and no exclude pattern.
+    Patterns are compiled once and the answer for each distinct path is cached, since the same few hundred
+    paths repeat across every resource in the IG.
+ */
+public class ReferenceMatcher {
+    //every reference, at any depth:
+    public static final ReferenceMatcher ALL = new ReferenceMatcher(List.of("**"), List.of());
+
+    private final List<Pattern> includes;
+    private final List<Pattern> excludes;
+    private final Map<String, Boolean> decisions = new ConcurrentHashMap<>();
+
+    public ReferenceMatcher(List<String> includePatterns, List<String> excludePatterns) {
+        this.includes = compile(includePatterns.isEmpty() ? List.of("**") : includePatterns);
+        this.excludes = compile(excludePatterns);
+    }
+
+    public boolean matches(String path) {
+        Boolean decision = decisions.get(path);
+        if (decision == null) {
+            decision = anyMatch(includes, path) && !anyMatch(excludes, path);
+            decisions.put(path, decision);
+        }
+        return decision;
+    }
+
+    private static boolean anyMatch(List<Pattern> patterns, String path) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(path).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Pattern> compile(List<String> patterns) {
+        List<Pattern> compiled = new ArrayList<>(patterns.size());
+        for (String pattern : patterns) {
+            compiled.add(Pattern.compile(toRegex(pattern.trim())));
+        }
+        return compiled;
+    }
+
+    //"performer.*" -> performer\.[^.]+ , "**.actor" -> (?:.*\.)?actor , "contained.**" -> contained(?:\..*)?
+    protected static String toRegex(String pattern) {
+        String[] segments = pattern.split("\\.");
+        StringBuilder regex = new StringBuilder();
+        boolean needsDot = false;
+        for (String segment : segments) {
+            if (segment.equals("**")) {
+                //swallows its own separator so it can also match zero segments:
+                regex.append(needsDot ? "(?:\\..*)?" : "(?:.*\\.)?");
+                if (!needsDot) {
+                    //the next segment follows the optional prefix directly
+                    continue;
+                }
+            } else {
+                if (needsDot) {
+                    regex.append("\\.");
+                }
+                regex.append(segment.equals("*") ? "[^.]+" : Pattern.quote(segment));
+            }
+            needsDot = true;
+        }
+        if (!needsDot) {
+            //a lone "**" matches everything
+            return ".*";
+        }
+        return regex.toString();
+    }
+}
@@ -3,11 +3,75 @@ package com.icf.ecqm.madie.data.cleaner;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/*
+    Dummy resources by resourceType (case insensitive). The built in resources below are serialized into
+    ResourceTemplates once, and more can be added or replaced from template files with loadTemplates, so a new
+    resource type doesn't need a code change.
+ */
 public class ResourceFactory {
+    private static final String RANDOM_CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+    //shared by every thread, SecureRandom is thread safe:
+    private static final SecureRandom RANDOM = new SecureRandom();
 
-    protected static JSONObject getConditionObject(String id) {
+    private static final Map<String, ResourceTemplate> templates = new ConcurrentHashMap<>();
+
+    static {
+        register(getConditionObject(ResourceTemplate.ID_SLOT));
+        register(getPractitionerObject(ResourceTemplate.ID_SLOT));
+        register(getEncounterObject(ResourceTemplate.ID_SLOT));
+        register(getLocationObject(ResourceTemplate.ID_SLOT));
+        register(getOrganizationObject(ResourceTemplate.ID_SLOT));
+        register(getPatientObject(ResourceTemplate.ID_SLOT));
+        register(getProcedureObject(ResourceTemplate.ID_SLOT));
+        register(getMedicationObject(ResourceTemplate.ID_SLOT));
+    }
+
+    private static void register(JSONObject resource) {
+        register(ResourceTemplate.fromJson(resource.toString()));
+    }
+
+    protected static void register(ResourceTemplate template) {
+        templates.put(template.getResourceType().toLowerCase(Locale.ROOT), template);
+    }
+
+    //reads every *.json file in the directory as a template, replacing any built in one of the same resourceType:
+    public static int loadTemplates(Path directory) throws IOException {
+        int loaded = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.json")) {
+            for (Path file : files) {
+                try {
+                    register(ResourceTemplate.fromJson(Files.readString(file)));
+                    loaded++;
+                } catch (RuntimeException e) {
+                    throw new IllegalArgumentException("Invalid template " + file + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        return loaded;
+    }
+
+    //the json of a dummy resource with this id, or null when there's no template for the type:
+    public static String create(String resourceType, String id) {
+        ResourceTemplate template = templates.get(resourceType.toLowerCase(Locale.ROOT));
+        return template == null ? null : template.render(id);
+    }
+
+    //same as create, for callers that go on to change the resource:
+    public static JSONObject createObject(String resourceType, String id) {
+        String json = create(resourceType, id);
+        return json == null ? null : new JSONObject(json);
+    }
+
+    private static JSONObject getConditionObject(String id) {
         return new JSONObject()
                 .put("resourceType", "Condition")
                 .put("id", id)
@@ -46,7 +110,7 @@ public class ResourceFactory {
                 .put("recordedDate", "2025-08-09T08:00:00.000+00:00");
     }
 
-    protected static JSONObject getPractitionerObject(String id) {
+    private static JSONObject getPractitionerObject(String id) {
         return new JSONObject()
                 .put("resourceType", "Practitioner")
                 .put("id", id)
@@ -98,7 +162,7 @@ public class ResourceFactory {
     }
 
 
-    protected static JSONObject getEncounterObject(String id) {
+    private static JSONObject getEncounterObject(String id) {
         return new JSONObject()
                 .put("resourceType", "Encounter")
                 .put("id", id)
@@ -125,7 +189,7 @@ public class ResourceFactory {
     }
 
 
-    protected static JSONObject getLocationObject(String id) {
+    private static JSONObject getLocationObject(String id) {
         return new JSONObject()
                 .put("resourceType", "Location")
                 .put("id", id)
@@ -150,7 +214,7 @@ public class ResourceFactory {
     }
 
 
-    protected static JSONObject getOrganizationObject(String id) {
+    private static JSONObject getOrganizationObject(String id) {
         return new JSONObject()
                 .put("resourceType", "Organization")
                 .put("id", id)
@@ -189,7 +253,7 @@ public class ResourceFactory {
 
 
     //Patient dummy resource
-    protected static JSONObject getPatientObject(String id) {
+    private static JSONObject getPatientObject(String id) {
         return new JSONObject()
                 .put("resourceType", "Patient")
                 .put("id", id)
@@ -229,13 +293,13 @@ public class ResourceFactory {
                 .put("gender", "female")
                 .put("name", new JSONArray()
                         .put(new JSONObject()
-                                .put("family", generateRandomString())
+                                .put("family", ResourceTemplate.RANDOM_SLOT)
                                 .put("given", new JSONArray()
-                                        .put(generateRandomString()))))
+                                        .put(ResourceTemplate.RANDOM_SLOT))))
                 .put("birthDate", "1987-06-12");
     }
 
-    protected static JSONObject getProcedureObject(String id) {
+    private static JSONObject getProcedureObject(String id) {
         return new JSONObject()
                 .put("resourceType", "Procedure")
                 .put("id", id)
@@ -256,7 +320,7 @@ public class ResourceFactory {
                                 .put("url", "http://hl7.org/fhir/us/qicore/StructureDefinition/qicore-recorded")));
     }
 
-    protected static JSONObject getMedicationObject(String id) {
+    private static JSONObject getMedicationObject(String id) {
         return new JSONObject()
                 .put("resourceType", "Medication")
                 .put("id", id)
@@ -272,12 +336,14 @@ public class ResourceFactory {
                                         .put("version", "04012024"))));
     }
 
+    //one draw from the shared source per string, the slight modulo bias doesn't matter for dummy names:
     protected static String generateRandomString() {
-        StringBuilder result = new StringBuilder(30);
-        for (int i = 0; i < 30; i++) {
-            int randomIndex = new SecureRandom().nextInt("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".length());
-            result.append("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".charAt(randomIndex));
+        byte[] bytes = new byte[30];
+        RANDOM.nextBytes(bytes);
+        char[] result = new char[bytes.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = RANDOM_CHARACTERS.charAt((bytes[i] & 0xff) % RANDOM_CHARACTERS.length());
         }
-        return result.toString();
+        return new String(result);
     }
 }
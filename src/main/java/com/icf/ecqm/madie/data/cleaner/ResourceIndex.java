@@ -0,0 +1,96 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    Every resource in the IG, keyed by resourceType and the id it has once cleaned (so "Patient/123" and
+    "Patient/Patient-123" are the same entry). Lookups are O(1) and never mix ids across resource types.
+    Safe to share between worker threads. When several files define the same resource, the one with the lowest path
+    wins, so the result doesn't depend on which thread got there first. The others are kept aside, so removing the
+    winner (--watch) hands the resource to the next one.
+ */
+public class ResourceIndex {
+    private final Map<String, Path> resourceFiles = new ConcurrentHashMap<>();
+    //the other files defining a resource, only for the few that are defined more than once:
+    private final Map<String, SortedSet<Path>> shadowedFiles = new ConcurrentHashMap<>();
+    //dummy entries queued for upload this run, they have no file of their own:
+    private final Set<String> claimedDummyEntries = ConcurrentHashMap.newKeySet();
+
+    //resourceType may be null for json without one, those can only be found by the same (null) type:
+    protected static String key(String resourceType, String id) {
+        return resourceType + "/" + FHIRJsonUtil.cleanedResourceId(id, resourceType);
+    }
+
+    public void put(String resourceType, String id, Path file) {
+        String key = key(resourceType, id);
+        resourceFiles.compute(key, (k, current) -> {
+            if (current == null || current.equals(file)) {
+                return file;
+            }
+            Path winner = current.compareTo(file) <= 0 ? current : file;
+            shadow(key, winner == current ? file : current);
+            return winner;
+        });
+    }
+
+    //drops the resource as defined by 'file', another file defining it takes its place:
+    public void remove(String resourceType, String id, Path file) {
+        String key = key(resourceType, id);
+        resourceFiles.compute(key, (k, current) -> {
+            if (current == null) {
+                return null;
+            }
+            if (!current.equals(file)) {
+                unshadow(key, file);
+                return current;
+            }
+            SortedSet<Path> shadowed = shadowedFiles.get(key);
+            if (shadowed == null) {
+                return null;
+            }
+            Path next = shadowed.first();
+            unshadow(key, next);
+            return next;
+        });
+    }
+
+    //only called while holding the resourceFiles entry for the key:
+    private void shadow(String key, Path file) {
+        shadowedFiles.computeIfAbsent(key, k -> new TreeSet<>()).add(file);
+    }
+
+    private void unshadow(String key, Path file) {
+        shadowedFiles.computeIfPresent(key, (k, shadowed) -> {
+            shadowed.remove(file);
+            return shadowed.isEmpty() ? null : shadowed;
+        });
+    }
+
+    //the file defining the resource, or null:
+    public Path get(String resourceType, String id) {
+        return resourceFiles.get(key(resourceType, id));
+    }
+
+    public boolean contains(String resourceType, String id) {
+        return resourceFiles.containsKey(key(resourceType, id));
+    }
+
+    public int size() {
+        return resourceFiles.size();
+    }
+
+    //true when the caller should place a dummy entry: the resource isn't in the IG and nobody else claimed it first
+    public boolean claimDummyEntry(String resourceType, String id) {
+        String key = key(resourceType, id);
+        return !resourceFiles.containsKey(key) && claimedDummyEntries.add(key);
+    }
+
+    public void releaseDummyEntry(String resourceType, String id) {
+        claimedDummyEntries.remove(key(resourceType, id));
+    }
+}
@@ -0,0 +1,96 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    A dummy resource serialized once, with slots where each copy differs:
+        {{id}}      the id of the resource being placed
+        {{random}}  a fresh random string (e.g. patient names)
+    Rendering only splices the slot values between the pre-serialized pieces, no json is built or parsed.
+ */
+public class ResourceTemplate {
+    protected static final String ID_SLOT = "{{id}}";
+    protected static final String RANDOM_SLOT = "{{random}}";
+
+    private final String resourceType;
+    //literal pieces, one more than there are slots:
+    private final String[] pieces;
+    //per slot, true for an id slot, false for a random one:
+    private final boolean[] idSlots;
+    private final int literalLength;
+
+    private ResourceTemplate(String resourceType, String json) {
+        this.resourceType = resourceType;
+
+        List<String> pieces = new ArrayList<>();
+        List<Boolean> idSlots = new ArrayList<>();
+        int start = 0;
+        while (true) {
+            int id = json.indexOf(ID_SLOT, start);
+            int random = json.indexOf(RANDOM_SLOT, start);
+            if (id < 0 && random < 0) {
+                break;
+            }
+            boolean isId = random < 0 || (id >= 0 && id < random);
+            int slot = isId ? id : random;
+            pieces.add(json.substring(start, slot));
+            idSlots.add(isId);
+            start = slot + (isId ? ID_SLOT.length() : RANDOM_SLOT.length());
+        }
+        pieces.add(json.substring(start));
+
+        this.pieces = pieces.toArray(new String[0]);
+        this.idSlots = new boolean[idSlots.size()];
+        int literalLength = 0;
+        for (int i = 0; i < this.idSlots.length; i++) {
+            this.idSlots[i] = idSlots.get(i);
+        }
+        for (String piece : this.pieces) {
+            literalLength += piece.length();
+        }
+        this.literalLength = literalLength;
+    }
+
+    //json text of a single resource, its resourceType names the template. Whitespace is dropped so every rendered
+    //resource is one line:
+    public static ResourceTemplate fromJson(String json) {
+        JsonElement element = JsonParser.parseString(json);
+        if (!element.isJsonObject()) {
+            throw new IllegalArgumentException("A template must be a json object");
+        }
+        JsonObject resource = element.getAsJsonObject();
+        JsonElement resourceType = resource.get("resourceType");
+        if (resourceType == null || !resourceType.isJsonPrimitive()) {
+            throw new IllegalArgumentException("A template needs a resourceType");
+        }
+        return new ResourceTemplate(resourceType.getAsString(), resource.toString());
+    }
+
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    public String render(String id) {
+        String escapedId = escape(id);
+        StringBuilder json = new StringBuilder(literalLength + idSlots.length * Math.max(escapedId.length(), 30));
+        json.append(pieces[0]);
+        for (int i = 0; i < idSlots.length; i++) {
+            json.append(idSlots[i] ? escapedId : ResourceFactory.generateRandomString());
+            json.append(pieces[i + 1]);
+        }
+        return json.toString();
+    }
+
+    //ids from the logs are [\w-]+, this only guards the template against anything else:
+    private static String escape(String value) {
+        if (value.indexOf('"') < 0 && value.indexOf('\\') < 0) {
+            return value;
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,8 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import java.util.List;
+
+//places dummy resources on their servers, results come back in the same order as the resources:
+public interface ResourceUploader {
+    List<UploadResult> upload(List<DummyResource> dummyResources);
+}
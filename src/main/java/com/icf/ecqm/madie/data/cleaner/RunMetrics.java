@@ -0,0 +1,336 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Where a run spends its time: wall time, files/sec and bytes read/written for each phase (walk, logs, check,
+    map, upload, clean), plus latency histograms for the steps within them:
+        read      reading a file during mapping
+        parse     parsing it into a JSONObject during mapping
+        rewrite   the streaming rewrite of a file, parsing and serializing happen in the same pass
+        write     comparing the rewritten file and moving it into place
+        http      dummy entry uploads, per resource
+    Everything is lock free so workers can record into the same metrics. Progress is printed at most every
+    PROGRESS_INTERVAL_NANOS instead of once per file.
+ */
+public class RunMetrics {
+    private static final long PROGRESS_INTERVAL_NANOS = 500_000_000L;
+
+    private final List<Phase> phases = new CopyOnWriteArrayList<>();
+    private final Histogram readTime = new Histogram("read");
+    private final Histogram parseTime = new Histogram("parse");
+    private final Histogram rewriteTime = new Histogram("rewrite");
+    private final Histogram writeTime = new Histogram("write");
+    private final Histogram httpLatency = new Histogram("http");
+
+    //totalFiles is what the progress line counts towards, 0 for phases without one:
+    public Phase startPhase(String name, String label, int totalFiles) {
+        Phase phase = new Phase(name, label, totalFiles);
+        phases.add(phase);
+        return phase;
+    }
+
+    public Histogram getReadTime() {
+        return readTime;
+    }
+
+    public Histogram getParseTime() {
+        return parseTime;
+    }
+
+    public Histogram getRewriteTime() {
+        return rewriteTime;
+    }
+
+    public Histogram getWriteTime() {
+        return writeTime;
+    }
+
+    public Histogram getHttpLatency() {
+        return httpLatency;
+    }
+
+    private List<Histogram> histograms() {
+        return List.of(readTime, parseTime, rewriteTime, writeTime, httpLatency);
+    }
+
+    public void printSummary(PrintStream out) {
+        out.println("\n\rPhase timings:");
+        for (Phase phase : phases) {
+            out.println("  " + phase.name + ": " + phase.getWallMillis() + " ms, " + phase.files.get() + " files ("
+                    + format(phase.getFilesPerSecond()) + " files/s), " + phase.bytesRead.sum() + " bytes read, "
+                    + phase.bytesWritten.sum() + " bytes written");
+        }
+        for (Histogram histogram : histograms()) {
+            if (histogram.getCount() > 0) {
+                out.println("  " + histogram.name + ": " + histogram.getCount() + " samples, p50 " + format(histogram.percentileMillis(0.5))
+                        + " ms, p90 " + format(histogram.percentileMillis(0.9)) + " ms, p99 " + format(histogram.percentileMillis(0.99))
+                        + " ms, max " + format(histogram.getMaxMillis()) + " ms");
+            }
+        }
+    }
+
+    //Prometheus text format for files ending in .prom, json otherwise:
+    public void write(Path file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file)) {
+            if (file.getFileName().toString().endsWith(".prom")) {
+                writePrometheus(writer);
+            } else {
+                writeJson(writer);
+            }
+        }
+    }
+
+    private void writeJson(Writer writer) throws IOException {
+        JsonWriter json = new JsonWriter(writer);
+        json.setIndent("    ");
+        json.beginObject();
+        json.name("phases").beginArray();
+        for (Phase phase : phases) {
+            json.beginObject()
+                    .name("name").value(phase.name)
+                    .name("wallMillis").value(phase.getWallMillis())
+                    .name("files").value(phase.files.get())
+                    .name("filesPerSecond").value(phase.getFilesPerSecond())
+                    .name("bytesRead").value(phase.bytesRead.sum())
+                    .name("bytesWritten").value(phase.bytesWritten.sum())
+                    .endObject();
+        }
+        json.endArray();
+        json.name("histograms").beginObject();
+        for (Histogram histogram : histograms()) {
+            json.name(histogram.name).beginObject()
+                    .name("count").value(histogram.getCount())
+                    .name("sumMillis").value(histogram.getSumMillis())
+                    .name("maxMillis").value(histogram.getMaxMillis())
+                    .name("p50Millis").value(histogram.percentileMillis(0.5))
+                    .name("p90Millis").value(histogram.percentileMillis(0.9))
+                    .name("p99Millis").value(histogram.percentileMillis(0.99));
+            json.name("buckets").beginArray();
+            for (int i = 0; i < Histogram.BOUNDS_MILLIS.length; i++) {
+                json.beginObject()
+                        .name("leMillis").value(Histogram.BOUNDS_MILLIS[i])
+                        .name("count").value(histogram.counts.get(i))
+                        .endObject();
+            }
+            json.endArray();
+            json.endObject();
+        }
+        json.endObject();
+        json.endObject();
+        json.flush();
+    }
+
+    private void writePrometheus(Writer writer) throws IOException {
+        //phases that run more than once (upload, and every batch in --watch) add up to one series each:
+        Map<String, long[]> totals = new LinkedHashMap<>();
+        for (Phase phase : phases) {
+            long[] total = totals.computeIfAbsent(phase.name, k -> new long[4]);
+            total[0] += phase.getWallMillis();
+            total[1] += phase.files.get();
+            total[2] += phase.bytesRead.sum();
+            total[3] += phase.bytesWritten.sum();
+        }
+        writer.write("# TYPE madie_cleaner_phase_seconds gauge\n");
+        for (Map.Entry<String, long[]> total : totals.entrySet()) {
+            writer.write("madie_cleaner_phase_seconds{phase=\"" + total.getKey() + "\"} " + total.getValue()[0] / 1000.0 + "\n");
+        }
+        writer.write("# TYPE madie_cleaner_phase_files gauge\n");
+        for (Map.Entry<String, long[]> total : totals.entrySet()) {
+            writer.write("madie_cleaner_phase_files{phase=\"" + total.getKey() + "\"} " + total.getValue()[1] + "\n");
+        }
+        writer.write("# TYPE madie_cleaner_phase_bytes_read gauge\n");
+        for (Map.Entry<String, long[]> total : totals.entrySet()) {
+            writer.write("madie_cleaner_phase_bytes_read{phase=\"" + total.getKey() + "\"} " + total.getValue()[2] + "\n");
+        }
+        writer.write("# TYPE madie_cleaner_phase_bytes_written gauge\n");
+        for (Map.Entry<String, long[]> total : totals.entrySet()) {
+            writer.write("madie_cleaner_phase_bytes_written{phase=\"" + total.getKey() + "\"} " + total.getValue()[3] + "\n");
+        }
+
+        for (Histogram histogram : histograms()) {
+            String metric = "madie_cleaner_" + histogram.name + "_seconds";
+            writer.write("# TYPE " + metric + " histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < Histogram.BOUNDS_MILLIS.length; i++) {
+                cumulative += histogram.counts.get(i);
+                writer.write(metric + "_bucket{le=\"" + Histogram.BOUNDS_MILLIS[i] / 1000.0 + "\"} " + cumulative + "\n");
+            }
+            writer.write(metric + "_bucket{le=\"+Inf\"} " + histogram.getCount() + "\n");
+            writer.write(metric + "_sum " + histogram.getSumMillis() / 1000.0 + "\n");
+            writer.write(metric + "_count " + histogram.getCount() + "\n");
+        }
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    public static class Phase {
+        private final String name;
+        private final String label;
+        private final AtomicInteger totalFiles;
+        private final long startNanos = System.nanoTime();
+        private volatile long endNanos = 0;
+        private final AtomicInteger files = new AtomicInteger();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder bytesWritten = new LongAdder();
+        private final AtomicLong lastProgressNanos = new AtomicLong(System.nanoTime());
+        private int printedFiles = -1;
+
+        private Phase(String name, String label, int totalFiles) {
+            this.name = name;
+            this.label = label;
+            this.totalFiles = new AtomicInteger(totalFiles);
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public void addBytesRead(long bytes) {
+            bytesRead.add(bytes);
+        }
+
+        public void addBytesWritten(long bytes) {
+            bytesWritten.add(bytes);
+        }
+
+        public void addFiles(int count) {
+            files.addAndGet(count);
+        }
+
+        //for phases fed while the files are still being found, the total grows with them:
+        public void addTotalFiles(int count) {
+            totalFiles.addAndGet(count);
+        }
+
+        //counts one file towards the progress line, which is printed at most every PROGRESS_INTERVAL_NANOS:
+        public void fileDone() {
+            int done = files.incrementAndGet();
+            long now = System.nanoTime();
+            long last = lastProgressNanos.get();
+            if (now - last >= PROGRESS_INTERVAL_NANOS && lastProgressNanos.compareAndSet(last, now)) {
+                printProgress(done, now);
+            }
+        }
+
+        public void end() {
+            endNanos = System.nanoTime();
+            if (totalFiles.get() > 0) {
+                printProgress(files.get(), endNanos);
+                System.out.println();
+            }
+        }
+
+        public long getWallMillis() {
+            long end = endNanos == 0 ? System.nanoTime() : endNanos;
+            return (end - startNanos) / 1_000_000;
+        }
+
+        public double getFilesPerSecond() {
+            long wallMillis = getWallMillis();
+            return wallMillis == 0 ? files.get() * 1000.0 : files.get() * 1000.0 / wallMillis;
+        }
+
+        private synchronized void printProgress(int done, long now) {
+            //a slower thread may get here after a later count was already printed:
+            int total = totalFiles.get();
+            if (done < printedFiles || total <= 0) {
+                return;
+            }
+            printedFiles = done;
+            double seconds = (now - startNanos) / 1e9;
+            double rate = seconds > 0 ? done / seconds : 0;
+            StringBuilder line = new StringBuilder("\r").append(label).append(": ")
+                    .append(done).append('/').append(total)
+                    .append(" (").append(format(100.0 * done / total)).append("%), ")
+                    .append((long) rate).append(" files/s");
+            if (done < total && rate > 0) {
+                long eta = (long) ((total - done) / rate);
+                line.append(", ETA ").append(eta / 60).append(':').append(String.format("%02d", eta % 60));
+            } else {
+                line.append(", ").append(getWallMillis()).append(" ms");
+            }
+            System.out.print(line);
+        }
+    }
+
+    /*
+        Fixed buckets from 0.1 ms to 30 s, so recording is a few atomic adds and percentiles are read off the
+        buckets (reported as the upper bound of the bucket the percentile falls in).
+     */
+    public static class Histogram {
+        protected static final double[] BOUNDS_MILLIS = {0.1, 0.25, 0.5, 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+        private final String name;
+        //one more than the bounds for everything above the last one:
+        private final AtomicLongArray counts = new AtomicLongArray(BOUNDS_MILLIS.length + 1);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private Histogram(String name) {
+            this.name = name;
+        }
+
+        public void record(long nanos) {
+            double millis = nanos / 1e6;
+            int bucket = 0;
+            while (bucket < BOUNDS_MILLIS.length && millis > BOUNDS_MILLIS[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+            count.increment();
+            sumNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        public void recordMillis(long millis) {
+            record(millis * 1_000_000);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getSumMillis() {
+            return sumNanos.sum() / 1e6;
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        public double percentileMillis(double percentile) {
+            long total = getCount();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(BOUNDS_MILLIS[i], getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Streams what the run did to a JSON Lines file as it happens, one event per line:
+        {"event":"id_rewrite","file":"...","resourceType":"Patient","from":"123","to":"Patient-123"}
+        {"event":"reference_rewrite","file":"...","path":"subject","from":"Patient/123","to":"Patient/Patient-123"}
+        {"event":"dummy_upload","resourceType":"Patient","url":"...","status":201,"latencyMillis":12,"attempts":1,"response":"..."}
+        {"event":"dummy_cached","file":"...","resourceType":"Patient","url":"..."}
+        {"event":"failure","stage":"map","file":"...","error":"..."}
+    Only counters are kept in memory, so a run over any number of files uses the same amount of it. Writes are
+    synchronized so workers can share one report. Without a report file (no --report) only the counters are kept.
+ */
+public class RunReport implements Closeable {
+    //a failed transaction hands every entry the whole response, and a PUT echoes the resource, a line keeps the start:
+    protected static final int MAX_RESPONSE_LENGTH = 500;
+
+    private final Path reportFile;
+    private final Writer writer;
+
+    private final AtomicLong idRewrites = new AtomicLong();
+    private final AtomicLong referenceRewrites = new AtomicLong();
+    private final AtomicLong dummyUploads = new AtomicLong();
+    private final AtomicLong failedDummyUploads = new AtomicLong();
+    private final AtomicLong cachedDummyEntries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    //reportFile may be null:
+    public RunReport(Path reportFile) throws IOException {
+        this.reportFile = reportFile;
+        this.writer = reportFile != null ? Files.newBufferedWriter(reportFile) : null;
+    }
+
+    public Path getReportFile() {
+        return reportFile;
+    }
+
+    public void idRewrite(Path file, String resourceType, String from, String to) {
+        idRewrites.incrementAndGet();
+        if (writer != null) {
+            line("id_rewrite").put("file", file).put("resourceType", resourceType).put("from", from).put("to", to).write();
+        }
+    }
+
+    public void referenceRewrite(Path file, String path, String from, String to) {
+        referenceRewrites.incrementAndGet();
+        if (writer != null) {
+            line("reference_rewrite").put("file", file).put("path", path).put("from", from).put("to", to).write();
+        }
+    }
+
+    //once per rewritten file. Without a report file, a line per file that changed stands in for its details:
+    public void fileRewritten(Path file, int idRewrites, int referenceRewrites) {
+        if (writer == null && idRewrites + referenceRewrites > 0) {
+            System.out.println("\n\r" + file + ": id rewrites: " + idRewrites + ", reference rewrites: " + referenceRewrites);
+        }
+    }
+
+    public void dummyUpload(UploadResult result) {
+        if (result.isSuccess()) {
+            dummyUploads.incrementAndGet();
+        } else {
+            failedDummyUploads.incrementAndGet();
+        }
+        if (writer == null) {
+            return;
+        }
+        DummyResource dummyResource = result.getDummyResource();
+        line("dummy_upload")
+                .put("file", dummyResource.getLogEntry().getFileName())
+                .put("resourceType", dummyResource.getResourceType())
+                .put("url", dummyResource.getResourceUrl())
+                .put("status", result.getStatusCode())
+                .put("latencyMillis", result.getLatencyMillis())
+                .put("attempts", result.getAttempts())
+                .put("response", truncate(result.getResponse()))
+                .write();
+    }
+
+    private static String truncate(String response) {
+        if (response == null || response.length() <= MAX_RESPONSE_LENGTH) {
+            return response;
+        }
+        return response.substring(0, MAX_RESPONSE_LENGTH) + "... (" + response.length() + " characters)";
+    }
+
+    //a dummy entry that wasn't uploaded because the server is known to have it already:
+    public void dummyCached(DummyResource dummyResource) {
+        cachedDummyEntries.incrementAndGet();
+        if (writer != null) {
+            line("dummy_cached")
+                    .put("file", dummyResource.getLogEntry().getFileName())
+                    .put("resourceType", dummyResource.getResourceType())
+                    .put("url", dummyResource.getResourceUrl())
+                    .write();
+        }
+    }
+
+    //stage is "map", "clean", "logs", ...; file may be null:
+    public void failure(String stage, Path file, Throwable error) {
+        failures.incrementAndGet();
+        if (writer != null) {
+            line("failure").put("file", file).put("stage", stage).put("error", String.valueOf(error)).write();
+        }
+    }
+
+    public long getIdRewrites() {
+        return idRewrites.get();
+    }
+
+    public long getReferenceRewrites() {
+        return referenceRewrites.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public void printSummary(PrintStream out) {
+        out.println("\n\rId rewrites: " + idRewrites.get()
+                + ", reference rewrites: " + referenceRewrites.get()
+                + ", dummy entries placed: " + dummyUploads.get()
+                + ", dummy entries failed: " + failedDummyUploads.get()
+                + ", dummy entries already on the server: " + cachedDummyEntries.get()
+                + ", failures: " + failures.get());
+        if (reportFile != null) {
+            out.println("Details written to " + reportFile);
+        }
+    }
+
+    private Line line(String event) {
+        return new Line(event);
+    }
+
+    //one line of the report, built up field by field:
+    private class Line {
+        private final StringWriter text = new StringWriter();
+        private final JsonWriter json = new JsonWriter(text);
+
+        private Line(String event) {
+            try {
+                json.beginObject().name("event").value(event);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        //a null file is left out:
+        private Line put(String name, Path file) {
+            return file == null ? this : put(name, file.toString());
+        }
+
+        private Line put(String name, String value) {
+            try {
+                json.name(name).value(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        private Line put(String name, long value) {
+            try {
+                json.name(name).value(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        private void write() {
+            try {
+                json.endObject();
+                writeLine(text.toString());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private synchronized void writeLine(String line) throws IOException {
+        writer.write(line);
+        writer.write('\n');
+    }
+
+    //for long running modes, so the report is readable while the process is still going:
+    public synchronized void flush() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/*
+    Remembers which resources are known to exist on each FHIR server, so repeated -checklogs runs only upload the
+    dummy entries that aren't there yet. An entry is trusted for ttlMillis after it was last confirmed, either by a
+    successful upload or by a search finding it, and is looked up again after that.
+
+    Before uploading, everything not known to exist is looked up in bulk: one GET [base]/[type]?_id=a,b,c search per
+    type and SEARCH_BATCH_SIZE ids. Whatever the server returns is cached and not uploaded. A search that fails just
+    leaves its resources to be uploaded, the same as without the cache.
+
+    Kept in the IG directory next to the manifest, and like it, under a name that doesn't end in .json.
+ */
+public class ServerCache {
+    protected static final String CACHE_FILE_NAME = ".madie-data-cleaner-server-cache";
+    //ids per search, keeps the query string well under the url length servers accept:
+    protected static final int SEARCH_BATCH_SIZE = 50;
+
+    private static final Type ENTRIES_TYPE = new TypeToken<Map<String, Map<String, Long>>>() {
+    }.getType();
+
+    private final Path baseDir;
+    private final long ttlMillis;
+    //server base url -> Type/id -> when it was last confirmed to exist, epoch millis:
+    private final Map<String, Map<String, Long>> servers = new TreeMap<>();
+    private int searches = 0;
+    private int failedSearches = 0;
+
+    private ServerCache(Path baseDir, long ttlMillis) {
+        this.baseDir = baseDir;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public static ServerCache load(Path baseDir, long ttlMillis) {
+        ServerCache cache = new ServerCache(baseDir, ttlMillis);
+        Path cacheFile = baseDir.resolve(CACHE_FILE_NAME);
+        if (!Files.isRegularFile(cacheFile)) {
+            return cache;
+        }
+
+        try (Reader reader = Files.newBufferedReader(cacheFile)) {
+            Map<String, Map<String, Long>> stored = new Gson().fromJson(reader, ENTRIES_TYPE);
+            if (stored != null) {
+                for (Map.Entry<String, Map<String, Long>> server : stored.entrySet()) {
+                    cache.servers.put(server.getKey(), new TreeMap<>(server.getValue()));
+                }
+            }
+        } catch (Exception e) {
+            //a bad cache only costs the uploads it would have saved:
+            System.err.println("Ignoring unreadable server cache: " + cacheFile);
+            e.printStackTrace();
+        }
+        return cache;
+    }
+
+    public boolean isKnown(DummyResource dummyResource) {
+        Map<String, Long> resources = servers.get(dummyResource.getServerUrl());
+        Long confirmed = resources != null ? resources.get(dummyResource.getRelativeUrl()) : null;
+        return confirmed != null && System.currentTimeMillis() - confirmed < ttlMillis;
+    }
+
+    public void markExists(DummyResource dummyResource) {
+        markExists(dummyResource.getServerUrl(), dummyResource.getRelativeUrl(), System.currentTimeMillis());
+    }
+
+    private void markExists(String serverUrl, String relativeUrl, long confirmed) {
+        servers.computeIfAbsent(serverUrl, k -> new TreeMap<>()).put(relativeUrl, confirmed);
+    }
+
+    //searches for every resource that isn't known to exist, returns the ones the server doesn't have (in order):
+    public List<DummyResource> refresh(HttpClient httpClient, List<DummyResource> dummyResources) {
+        //server -> type -> ids, the same resource can be wanted by several files:
+        Map<String, Map<String, Set<String>>> unknown = new LinkedHashMap<>();
+        for (DummyResource dummyResource : dummyResources) {
+            if (!isKnown(dummyResource)) {
+                unknown.computeIfAbsent(dummyResource.getServerUrl(), k -> new TreeMap<>())
+                        .computeIfAbsent(dummyResource.getResourceType(), k -> new TreeSet<>())
+                        .add(dummyResource.getResourceId());
+            }
+        }
+
+        for (Map.Entry<String, Map<String, Set<String>>> server : unknown.entrySet()) {
+            for (Map.Entry<String, Set<String>> type : server.getValue().entrySet()) {
+                List<String> ids = new ArrayList<>(type.getValue());
+                for (int start = 0; start < ids.size(); start += SEARCH_BATCH_SIZE) {
+                    search(httpClient, server.getKey(), type.getKey(), ids.subList(start, Math.min(start + SEARCH_BATCH_SIZE, ids.size())));
+                }
+            }
+        }
+
+        List<DummyResource> missing = new ArrayList<>();
+        for (DummyResource dummyResource : dummyResources) {
+            if (!isKnown(dummyResource)) {
+                missing.add(dummyResource);
+            }
+        }
+        return missing;
+    }
+
+    private void search(HttpClient httpClient, String serverUrl, String resourceType, List<String> ids) {
+        searches++;
+        Map<String, Long> resources = servers.get(serverUrl);
+        try {
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(serverUrl + "/" + resourceType
+                            + "?_id=" + URLEncoder.encode(String.join(",", ids), StandardCharsets.UTF_8)
+                            + "&_elements=id&_count=" + ids.size()))
+                    .header("Accept", "application/fhir+json")
+                    .GET()
+                    .build();
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                failedSearches++;
+                return;
+            }
+
+            //only what this search asked about is known now, an expired entry that wasn't found was deleted:
+            if (resources != null) {
+                for (String id : ids) {
+                    resources.remove(resourceType + "/" + id);
+                }
+            }
+            long confirmed = System.currentTimeMillis();
+            JSONArray entries = new JSONObject(response.body()).optJSONArray("entry");
+            if (entries == null) {
+                return;
+            }
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject resource = entries.getJSONObject(i).optJSONObject("resource");
+                if (resource != null && resourceType.equals(resource.optString("resourceType")) && resource.has("id")) {
+                    markExists(serverUrl, resourceType + "/" + resource.getString("id"), confirmed);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failedSearches++;
+        } catch (Exception e) {
+            failedSearches++;
+        }
+    }
+
+    public int getSearches() {
+        return searches;
+    }
+
+    public int getFailedSearches() {
+        return failedSearches;
+    }
+
+    //expired entries are dropped rather than written back:
+    public void save() throws IOException {
+        long now = System.currentTimeMillis();
+        Map<String, Map<String, Long>> current = new TreeMap<>();
+        for (Map.Entry<String, Map<String, Long>> server : servers.entrySet()) {
+            Map<String, Long> resources = new TreeMap<>();
+            for (Map.Entry<String, Long> resource : server.getValue().entrySet()) {
+                if (now - resource.getValue() < ttlMillis) {
+                    resources.put(resource.getKey(), resource.getValue());
+                }
+            }
+            if (!resources.isEmpty()) {
+                current.put(server.getKey(), resources);
+            }
+        }
+
+        Path cacheFile = baseDir.resolve(CACHE_FILE_NAME);
+        Path tempFile = Files.createTempFile(baseDir, CACHE_FILE_NAME, ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tempFile)) {
+                new Gson().toJson(current, ENTRIES_TYPE, writer);
+            }
+            Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import com.google.gson.stream.JsonWriter;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+
+/*
+    Places dummy resources on their servers as FHIR transaction Bundles of up to batchSize PUT entries each,
+    all over one shared (keep-alive) HttpClient. A transaction-response returns one entry per request entry,
+    in the same order, so each response entry is matched back to the dummy resource it came from.
+ */
+public class TransactionUploader implements ResourceUploader {
+    private final HttpClient httpClient;
+    private final int batchSize;
+
+    public TransactionUploader(HttpClient httpClient, int batchSize) {
+        this.httpClient = httpClient;
+        this.batchSize = batchSize;
+    }
+
+    protected static HttpClient newHttpClient() {
+        return HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(30))
+                .build();
+    }
+
+    @Override
+    public List<UploadResult> upload(List<DummyResource> dummyResources) {
+        //one server per log, but keep the grouping in case logs from different servers are mixed:
+        Map<String, List<DummyResource>> byServer = new LinkedHashMap<>();
+        for (DummyResource dummyResource : dummyResources) {
+            byServer.computeIfAbsent(dummyResource.getServerUrl(), k -> new ArrayList<>()).add(dummyResource);
+        }
+
+        List<UploadResult> results = new ArrayList<>(dummyResources.size());
+        for (Map.Entry<String, List<DummyResource>> server : byServer.entrySet()) {
+            List<DummyResource> serverResources = server.getValue();
+            for (int start = 0; start < serverResources.size(); start += batchSize) {
+                List<DummyResource> batch = serverResources.subList(start, Math.min(start + batchSize, serverResources.size()));
+                results.addAll(sendBatch(server.getKey(), batch));
+            }
+        }
+        return results;
+    }
+
+    //the rendered resources are spliced in as they are rather than parsed back into json:
+    protected static String toTransactionBundle(List<DummyResource> batch) {
+        try {
+            StringWriter bundle = new StringWriter();
+            JsonWriter json = new JsonWriter(bundle);
+            json.beginObject()
+                    .name("resourceType").value("Bundle")
+                    .name("type").value("transaction")
+                    .name("entry").beginArray();
+            for (DummyResource dummyResource : batch) {
+                json.beginObject()
+                        .name("fullUrl").value(dummyResource.getResourceUrl())
+                        .name("resource").jsonValue(dummyResource.getResource())
+                        .name("request").beginObject()
+                        .name("method").value("PUT")
+                        .name("url").value(dummyResource.getRelativeUrl())
+                        .endObject()
+                        .endObject();
+            }
+            json.endArray().endObject().flush();
+            return bundle.toString();
+        } catch (IOException e) {
+            //a StringWriter doesn't throw
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private List<UploadResult> sendBatch(String serverUrl, List<DummyResource> batch) {
+        List<UploadResult> results = new ArrayList<>(batch.size());
+        try {
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(serverUrl))
+                    .header("Content-Type", "application/fhir+json")
+                    .header("Accept", "application/fhir+json")
+                    .POST(HttpRequest.BodyPublishers.ofString(toTransactionBundle(batch)))
+                    .build();
+
+            long start = System.nanoTime();
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            //every entry in the bundle shares the bundle's round trip:
+            long latencyMillis = (System.nanoTime() - start) / 1_000_000;
+
+            JSONArray responseEntries = null;
+            if (response.statusCode() >= 200 && response.statusCode() < 300) {
+                //a 2xx without per-entry responses says nothing about the entries, none of them count as placed:
+                responseEntries = new JSONObject(response.body()).optJSONArray("entry");
+                if (responseEntries == null) {
+                    responseEntries = new JSONArray();
+                }
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                if (responseEntries == null) {
+                    //transactions are all or nothing, so a failed bundle fails every entry in it:
+                    results.add(new UploadResult(batch.get(i), response.statusCode(), response.body(), latencyMillis, 1));
+                } else if (i < responseEntries.length()) {
+                    JSONObject entryResponse = responseEntries.getJSONObject(i).optJSONObject("response");
+                    results.add(new UploadResult(batch.get(i), parseStatus(entryResponse), String.valueOf(entryResponse), latencyMillis, 1));
+                } else {
+                    results.add(new UploadResult(batch.get(i), -1, "No entry for this resource in the transaction-response.", latencyMillis, 1));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failAll(batch, results, e);
+        } catch (Exception e) {
+            failAll(batch, results, e);
+        }
+        return results;
+    }
+
+    private static void failAll(List<DummyResource> batch, List<UploadResult> results, Exception e) {
+        e.printStackTrace();
+        results.clear();
+        for (DummyResource dummyResource : batch) {
+            results.add(new UploadResult(dummyResource, -1, String.valueOf(e)));
+        }
+    }
+
+    //"201 Created" -> 201
+    private static int parseStatus(JSONObject entryResponse) {
+        if (entryResponse == null) {
+            return -1;
+        }
+        String status = entryResponse.optString("status", "").trim();
+        int space = status.indexOf(' ');
+        try {
+            return Integer.parseInt(space > 0 ? status.substring(0, space) : status);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    Load tests dummy entry placement offline: starts a LocalFhirServer, builds <resources> dummy resources from the
+    ResourceFactory templates and places them with the same uploader -checklogs would use for the given options
+    (transaction bundles of --batch-size, or --per-resource-upload with --max-in-flight and --max-retries). Each run
+    uses new ids, so every run creates its resources rather than replacing the last run's.
+
+    Reported per run: http requests the server received and requests/s, resources/s, failures, and latency
+    percentiles per resource (the resources of a transaction share its round trip, as in --metrics-out). The first
+    run includes connection setup and JIT warm-up.
+
+    java -cp MADiEDataCleaner-jar-with-dependencies.jar com.icf.ecqm.madie.data.cleaner.UploadLoadTest
+        [--resources N] [--runs N] [--latency MS] [--error-rate R] [--batch-size N | --per-resource-upload --max-in-flight N]
+ */
+public class UploadLoadTest {
+    //the types the dummy entries in RefreshIG logs are mostly for:
+    private static final String[] RESOURCE_TYPES = {"Patient", "Practitioner", "Location", "Organization", "Encounter"};
+
+    public static void main(String[] args) throws IOException {
+        int resources = 10000;
+        int runs = 3;
+        long latencyMillis = 0;
+        double errorRate = 0;
+        //everything that isn't the load test's own goes to CleanerOptions:
+        List<String> uploadArgs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String lower = args[i].toLowerCase();
+                if (lower.equals("--resources")) {
+                    resources = Integer.parseInt(CleanerOptions.valueAfter(args, i++));
+                } else if (lower.equals("--runs")) {
+                    runs = Integer.parseInt(CleanerOptions.valueAfter(args, i++));
+                } else if (lower.equals("--latency")) {
+                    latencyMillis = Long.parseLong(CleanerOptions.valueAfter(args, i++));
+                } else if (lower.equals("--error-rate")) {
+                    errorRate = Double.parseDouble(CleanerOptions.valueAfter(args, i++));
+                } else {
+                    uploadArgs.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Expected a number: " + e.getMessage());
+            System.exit(2);
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        if (resources < 1 || runs < 1 || latencyMillis < 0 || errorRate < 0 || errorRate > 1) {
+            System.err.println("--resources and --runs must be at least 1, --latency can't be negative and --error-rate must be between 0 and 1");
+            System.exit(2);
+            return;
+        }
+
+        //the upload options are the cleaner's own:
+        CleanerOptions options;
+        try {
+            options = CleanerOptions.fromArgs(uploadArgs.toArray(new String[0]));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        LocalFhirServer.enableNoDelay();
+        LocalFhirServer server = new LocalFhirServer(0, latencyMillis, errorRate);
+        server.start();
+        try {
+            System.out.println("Placing " + resources + " resources on " + server.getBaseUrl() + " (latency " + latencyMillis + " ms, error rate "
+                    + errorRate + ") " + (options.isPerResourceUpload()
+                    ? "one PUT at a time, " + options.getMaxInFlight() + " in flight, " + options.getMaxRetries() + " retries"
+                    : "in transactions of " + options.getBatchSize()) + ".");
+
+            //one client for every run, like one -checklogs run placing several logs' worth:
+            HttpClient httpClient = TransactionUploader.newHttpClient();
+            for (int run = 1; run <= runs; run++) {
+                List<DummyResource> dummyResources = dummyResources(server.getBaseUrl(), run, resources);
+                long requestsBefore = server.getRequests();
+                long errorsBefore = server.getInjectedErrors();
+
+                long start = System.nanoTime();
+                List<UploadResult> results = Main.newUploader(options, httpClient).upload(dummyResources);
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                long requests = server.getRequests() - requestsBefore;
+                long[] latencies = new long[results.size()];
+                int failed = 0;
+                for (int i = 0; i < results.size(); i++) {
+                    latencies[i] = results.get(i).getLatencyMillis();
+                    if (!results.get(i).isSuccess()) {
+                        failed++;
+                    }
+                }
+                Arrays.sort(latencies);
+
+                System.out.println(String.format("Run %d: %d resources in %.0f ms, %d requests (%.1f requests/s, %.1f resources/s), %d failed, %d errors injected",
+                        run, results.size(), seconds * 1000, requests, requests / seconds, results.size() / seconds, failed,
+                        server.getInjectedErrors() - errorsBefore));
+                System.out.println(String.format("    latency per resource: p50 %d ms, p90 %d ms, p99 %d ms, max %d ms",
+                        percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99), latencies[latencies.length - 1]));
+            }
+            System.out.println("\n\rServer holds " + server.size() + " resources after " + server.getRequests() + " requests.");
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static List<DummyResource> dummyResources(String serverUrl, int run, int count) {
+        List<DummyResource> dummyResources = new ArrayList<>(count);
+        for (int n = 0; n < count; n++) {
+            String resourceType = RESOURCE_TYPES[n % RESOURCE_TYPES.length];
+            String id = "load-" + run + "-" + n;
+            ParsedLogEntry logEntry = new ParsedLogEntry(resourceType, id, "load-test-bundle.json", serverUrl);
+            dummyResources.add(new DummyResource(logEntry, id, ResourceFactory.create(resourceType, id)));
+        }
+        return dummyResources;
+    }
+
+    //nearest rank, values sorted:
+    private static long percentile(long[] values, double percentile) {
+        int rank = (int) Math.ceil(percentile * values.length);
+        return values[Math.max(0, rank - 1)];
+    }
+}
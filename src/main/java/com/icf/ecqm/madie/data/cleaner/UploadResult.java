@@ -0,0 +1,47 @@
+package com.icf.ecqm.madie.data.cleaner;
+
+//outcome of placing one dummy resource on the server, statusCode is -1 when no response was received:
+public class UploadResult {
+    private final DummyResource dummyResource;
+    private final int statusCode;
+    private final String response;
+    private final long latencyMillis;
+    private final int attempts;
+
+    public UploadResult(DummyResource dummyResource, int statusCode, String response) {
+        this(dummyResource, statusCode, response, 0, 1);
+    }
+
+    public UploadResult(DummyResource dummyResource, int statusCode, String response, long latencyMillis, int attempts) {
+        this.dummyResource = dummyResource;
+        this.statusCode = statusCode;
+        this.response = response;
+        this.latencyMillis = latencyMillis;
+        this.attempts = attempts;
+    }
+
+    public DummyResource getDummyResource() {
+        return dummyResource;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getResponse() {
+        return response;
+    }
+
+    //time taken by the request that produced this result (the last attempt when retried):
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public boolean isSuccess() {
+        return statusCode >= 200 && statusCode < 300;
+    }
+}